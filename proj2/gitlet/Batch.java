@@ -0,0 +1,103 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs a script of gitlet commands in one process, so importing a long history doesn't pay for a
+ *  JVM, and a rewrite of the staging area and commit tree, per command.
+ *
+ *  The script has one command per line, written as its arguments would be on the command line:
+ *  words are separated by spaces, and a word with spaces is put in double quotes, in which \" and
+ *  \\ stand for " and \. Blank lines and lines starting with # are skipped.
+ *
+ *  While the batch runs, the Session keeps the staging area and commit tree in memory between
+ *  commands, and writes them only at a line saying "checkpoint" and when the script ends. Commits
+ *  and blobs are still written as they're made. Each command prints what it would on its own; one
+ *  that fails prints its message and changes nothing, as commands report errors before they
+ *  change anything, and the batch goes on. An IOException stops the batch, dropping what was
+ *  changed since the last checkpoint.
+ *
+ *  java gitlet.Main batch [FILE]   run the commands in FILE, or on standard input if there's none
+ */
+class Batch {
+    static final String CHECKPOINT = "checkpoint";
+
+    /**
+     * Execute batch command
+     */
+    static void command(String[] args) throws IOException {
+        if (args.length > 2) GitletException.handleException("Incorrect operands.");
+        if (args.length == 2 && !new File(args[1]).exists()) GitletException.handleException("File does not exist.");
+        try (InputStream script = args.length == 2 ? new FileInputStream(args[1]) : System.in) {
+            run(new BufferedReader(new InputStreamReader(script, StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Run the commands read from SCRIPT, writing what they changed at each checkpoint and at the end
+     */
+    static void run(BufferedReader script) throws IOException {
+        Session session = Session.current();
+        session.deferWrites(true);
+        try {
+            String line;
+            while ((line = script.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                if (line.equals(CHECKPOINT)) {
+                    session.flush();
+                    continue;
+                }
+                try {
+                    String[] args = parse(line);
+                    if (args[0].equals("batch") || args[0].equals("daemon"))
+                        GitletException.handleException("Cannot run " + args[0] + " in a batch.");
+                    Main.dispatch(args);
+                } catch (GitletException excp) {
+                    System.out.println(excp.getMessage());
+                }
+            }
+            session.flush();
+        } finally {
+            session.deferWrites(false);
+            session.discard();
+        }
+    }
+
+    /**
+     * Return the arguments written on LINE
+     */
+    static String[] parse(String line) {
+        List<String> args = new ArrayList<>();
+        StringBuilder arg = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') quoted = false;
+                else if (c == '\\' && i + 1 < line.length() && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\'))
+                    arg.append(line.charAt(++i));
+                else arg.append(c);
+            }
+            else if (Character.isWhitespace(c)) {
+                if (arg != null) args.add(arg.toString());
+                arg = null;
+            }
+            else {
+                if (arg == null) arg = new StringBuilder();
+                if (c == '"') quoted = true;
+                else arg.append(c);
+            }
+        }
+        if (quoted) GitletException.handleException("Unterminated quote in: " + line);
+        if (arg != null) args.add(arg.toString());
+        return args.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,124 @@
+package gitlet;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+
+/** Pieces of the binary encodings of commits and the commit tree, written with a DataOutputStream
+ *  and read back from a ByteBuffer, so reading needs no reflection.
+ *
+ *  A varint is a non-negative number in 7-bit groups, least significant first, with the high bit of
+ *  each byte set if more follow. A string is the varint length of its UTF-8 bytes, then the bytes.
+ *  A path table is a varint count, then for each path in sorted order: the varint length of the
+ *  prefix of its UTF-8 bytes it shares with the path before it, the rest of its bytes as a string,
+ *  and the id the path maps to (20 bytes).
+ *
+ *  Objects written by Java serialization start with STREAM_MAGIC, which no encoding here starts
+ *  with, so an object written by the original gitlet is told apart: LegacyRepository rewrites
+ *  them when it upgrades a repository, and readers refuse any other with
+ *  Repository.UNSUPPORTED_FORMAT rather than misread it.
+ */
+class BinaryFormat {
+    /** First 2 bytes of a Java serialization stream */
+    private static final int STREAM_MAGIC = 0xACED;
+
+    /**
+     * Return true if BYTES was written by Java serialization rather than in a binary encoding
+     */
+    static boolean isSerialized(byte[] bytes) {
+        return bytes.length >= 2 && ((bytes[0] & 0xff) << 8 | (bytes[1] & 0xff)) == STREAM_MAGIC;
+    }
+
+    /**
+     * Write the non-negative VALUE to OUT as a varint
+     */
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        if (value < 0) throw new IllegalArgumentException("Negative varint");
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Return the varint at the position of IN, advancing IN past it; one too long for a long is refused
+     */
+    static long readLongVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+            if (shift >= 56) throw new IllegalArgumentException("Bad varint");
+        }
+    }
+
+    /**
+     * Return the varint at the position of IN, advancing IN past it; one too large for an int is refused
+     */
+    static int readVarint(ByteBuffer in) {
+        long value = readLongVarint(in);
+        if (value > Integer.MAX_VALUE) throw new IllegalArgumentException("Bad varint");
+        return (int) value;
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    static void writeId(DataOutputStream out, ObjectId id) throws IOException {
+        out.write(id.toBytes());
+    }
+
+    static ObjectId readId(ByteBuffer in) {
+        ObjectId id = ObjectId.read(in, in.position());
+        in.position(in.position() + ObjectId.LENGTH);
+        return id;
+    }
+
+    /**
+     * Write the path table of PATHS, which must be sorted
+     */
+    static void writePathTable(DataOutputStream out, SortedMap<String, ObjectId> paths) throws IOException {
+        writeVarint(out, paths.size());
+        byte[] previous = new byte[0];
+        for (Map.Entry<String, ObjectId> entry: paths.entrySet()) {
+            byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            int shared = 0, limit = Math.min(previous.length, path.length);
+            while (shared < limit && previous[shared] == path[shared]) shared += 1;
+            writeVarint(out, shared);
+            writeVarint(out, path.length - shared);
+            out.write(path, shared, path.length - shared);
+            writeId(out, entry.getValue());
+            previous = path;
+        }
+    }
+
+    /**
+     * Read a path table into PATHS
+     */
+    static void readPathTable(ByteBuffer in, Map<String, ObjectId> paths) {
+        byte[] path = new byte[64];
+        for (int count = readVarint(in); count > 0; --count) {
+            int shared = readVarint(in), rest = readVarint(in);
+            if (shared + rest > path.length) path = Arrays.copyOf(path, Math.max(2 * path.length, shared + rest));
+            in.get(path, shared, rest);
+            paths.put(new String(path, 0, shared + rest, StandardCharsets.UTF_8), readId(in));
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/** Content-addressed storage of file contents.
+ *  Each version of a file is stored once under .gitlet/blobs, named by the SHA of its content
+ *  (the same SHA the staging area records), so identical content committed on several branches
+ *  or restored from an old commit never takes extra space.
+ *
+ *  Files of CHUNKING_THRESHOLD bytes or more are split by the Chunker, and each chunk is stored
+ *  as a blob of its own. The file's SHA then names a manifest listing its chunks, so a new version
+ *  of a large file only stores the chunks that changed.
+ *  Manifest: file length, chunk count, then per chunk: SHA (20 bytes), length; numbers are varints.
+ */
+class BlobStore {
+    /** Size from which files are stored as chunks and a manifest */
+    static final long CHUNKING_THRESHOLD = 1 << 20;
+
+    /**
+     * Return the file holding the content with the given SHA while it's loose (i.e., not packed by gc)
+     */
+    static File blobFile(ObjectId SHA) {
+        return ObjectStore.looseFile(ObjectStore.BLOB, SHA);
+    }
+
+    static boolean contains(ObjectId SHA) {
+        return ObjectStore.contains(ObjectStore.BLOB, SHA) || ObjectStore.contains(ObjectStore.MANIFEST, SHA);
+    }
+
+    /**
+     * Store the content of the given file under SHA, unless that content is already stored
+     */
+    static void save(ObjectId SHA, File source) throws IOException {
+        if (contains(SHA)) return;
+        if (source.length() < CHUNKING_THRESHOLD) {
+            ObjectStore.writeLoose(ObjectStore.BLOB, SHA, source);
+            return;
+        }
+
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+        int count = 0;
+        long length = 0;
+        try (InputStream in = new FileInputStream(source)) {
+            Chunker chunker = new Chunker(in);
+            for (byte[] chunk = chunker.next(); chunk != null; chunk = chunker.next()) {
+                ObjectId chunkSHA = ObjectId.hash(chunk);
+                if (!ObjectStore.contains(ObjectStore.BLOB, chunkSHA))
+                    ObjectStore.writeLoose(ObjectStore.BLOB, chunkSHA, chunk);
+                chunks.write(chunkSHA.toBytes());
+                BinaryFormat.writeVarint(chunks, chunk.length);
+                count += 1;
+                length += chunk.length;
+            }
+        }
+        BinaryFormat.writeVarint(manifest, length);
+        BinaryFormat.writeVarint(manifest, count);
+        chunks.writeTo(manifest);
+        ObjectStore.writeLoose(ObjectStore.MANIFEST, SHA, manifest.toByteArray());
+    }
+
+    /**
+     * Return the content stored under SHA
+     */
+    static byte[] read(ObjectId SHA) {
+        if (!ObjectStore.contains(ObjectStore.MANIFEST, SHA)) return ObjectStore.read(ObjectStore.BLOB, SHA);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try {
+            writeChunks(SHA, content);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return content.toByteArray();
+    }
+
+    /**
+     * Write the content stored under SHA to TARGET; the content of a chunked file is streamed
+     * one chunk at a time, never held in memory whole
+     */
+    static void writeTo(ObjectId SHA, File target) throws IOException {
+        if (!ObjectStore.contains(ObjectStore.MANIFEST, SHA)) {
+            ObjectStore.copyTo(ObjectStore.BLOB, SHA, target);
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(target)) {
+            writeChunks(SHA, out);
+        }
+    }
+
+    /**
+     * Make TARGET, which must not exist, a hard link to the file the content stored under SHA is in,
+     * and make that file read-only so the link can't be edited, changing what's stored. Return false,
+     * and do nothing, if the content isn't in a loose file of its own as is, or the link can't be made
+     */
+    static boolean linkTo(ObjectId SHA, File target) {
+        File plain = ObjectStore.plainLooseFile(ObjectStore.BLOB, SHA);
+        if (plain == null) return false;
+        try {
+            Files.createLink(target.toPath(), plain.toPath());
+        } catch (IOException | UnsupportedOperationException excp) {
+            return false;
+        }
+        plain.setReadOnly();
+        return true;
+    }
+
+    private static void writeChunks(ObjectId SHA, OutputStream out) throws IOException {
+        ByteBuffer manifest = ByteBuffer.wrap(ObjectStore.read(ObjectStore.MANIFEST, SHA));
+        BinaryFormat.readLongVarint(manifest); // length of the file
+        for (int count = BinaryFormat.readVarint(manifest); count > 0; --count) {
+            ObjectId chunkSHA = ObjectId.read(manifest, manifest.position());
+            manifest.position(manifest.position() + ObjectId.LENGTH);
+            BinaryFormat.readVarint(manifest); // length of the chunk
+            out.write(ObjectStore.read(ObjectStore.BLOB, chunkSHA));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Splits a stream into chunks at content-defined boundaries (FastCDC).
+ *  A gear hash of the bytes read so far is rolled over the stream, and a chunk ends where the
+ *  hash has enough zero bits. Boundaries only depend on the bytes just before them, so an edit
+ *  to a large file moves the boundaries near the edit only, and the other chunks of the new
+ *  version are the same as, and are stored once with, the chunks of the old version.
+ *
+ *  Chunks are between MIN_SIZE and MAX_SIZE bytes long. Normalized chunking makes a boundary
+ *  harder to find before AVERAGE_SIZE and easier after, which keeps most chunks near that size.
+ */
+class Chunker {
+    static final int MIN_SIZE = 16 << 10;
+    static final int AVERAGE_SIZE = 64 << 10;
+    static final int MAX_SIZE = 256 << 10;
+    /** Masks on the top bits of the hash: 18 bits before AVERAGE_SIZE, 14 bits after */
+    private static final long MASK_BEFORE_AVERAGE = 0xffffc00000000000L;
+    private static final long MASK_AFTER_AVERAGE = 0xfffc000000000000L;
+
+    /** A random number for each byte value; fixed, so every repository cuts the same chunks */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; ++i) GEAR[i] = random.nextLong();
+    }
+
+    private final InputStream in;
+    /** Bytes read but not yet returned are buffer[start, end) */
+    private final byte[] buffer = new byte[2 * MAX_SIZE];
+    private int start, end;
+    private boolean endOfStream;
+
+    Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Return the next chunk of the stream, or null at its end
+     */
+    byte[] next() throws IOException {
+        fill();
+        if (start == end) return null;
+        int length = cut(buffer, start, Math.min(end - start, MAX_SIZE));
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+        start += length;
+        return chunk;
+    }
+
+    /** Make sure at least MAX_SIZE bytes are buffered, unless the stream ends first */
+    private void fill() throws IOException {
+        if (end - start >= MAX_SIZE || endOfStream) return;
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+            int read = in.read(buffer, end, buffer.length - end);
+            if (read < 0) {
+                endOfStream = true;
+                break;
+            }
+            end += read;
+        }
+    }
+
+    /**
+     * Return the length of the chunk starting at OFFSET of DATA, of which LENGTH bytes are available
+     */
+    static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) return length;
+        int normal = Math.min(length, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; ++i) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_BEFORE_AVERAGE) == 0) return i + 1;
+        }
+        for (; i < length; ++i) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xff];
+            if ((hash & MASK_AFTER_AVERAGE) == 0) return i + 1;
+        }
+        return length;
+    }
+}
@@ -0,0 +1,138 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Set;
+
+/** Thin client of the gitlet daemon: java gitlet.Client ARGS runs the command ARGS in the daemon
+ *  serving the current directory, and prints its output and exits with its exit code, exactly as
+ *  java gitlet.Main ARGS would. It only uses the JDK, so none of gitlet is loaded to forward a
+ *  command; with no daemon running, it runs the command itself through Main.
+ *
+ *  Request: argument count (4 bytes), then each argument (modified UTF-8).
+ *  Reply: a sequence of frames, each a kind byte followed by
+ *      for OUT and ERR: a length (4 bytes) and that many bytes of standard output or error,
+ *      for EXIT: the exit code of the command (4 bytes), which ends the reply.
+ */
+public class Client {
+    static final byte OUT = 1, ERR = 2, EXIT = 3;
+    /** Exit code returned by forward when no daemon serves the directory */
+    static final int NO_DAEMON = -1;
+    /** Permissions of the directory of a user's sockets */
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+    public static void main(String[] args) throws IOException {
+        int exitCode = forward(args);
+        if (exitCode == NO_DAEMON) {
+            Main.main(args);
+            return;
+        }
+        System.out.flush();
+        System.exit(exitCode);
+    }
+
+    /**
+     * Return the socket of the daemon serving DIRECTORY. It's kept out of the directory, where it
+     * would be in the way of init, in the directory of the user's sockets, and named by the hash of
+     * the directory's path
+     */
+    static File socketFile(File directory) throws IOException {
+        try {
+            byte[] path = directory.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(path);
+            StringBuilder name = new StringBuilder("gitlet-");
+            for (int i = 0; i < 8; ++i) name.append(String.format("%02x", hash[i]));
+            return new File(socketDirectory(), name.append(".sock").toString());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * Return the directory of the current user's daemon sockets: gitlet in $XDG_RUNTIME_DIR, or
+     * gitlet-USER in the temporary directory, made if it's missing. Anyone who can write to it could
+     * put their own socket in place of a daemon's and be sent its commands, so it's refused unless
+     * it's a directory, not a link, owned by the user and closed to everyone else
+     */
+    static File socketDirectory() throws IOException {
+        String user = System.getProperty("user.name");
+        String runtime = System.getenv("XDG_RUNTIME_DIR");
+        Path directory = runtime != null && !runtime.isEmpty() ? Paths.get(runtime, "gitlet")
+                : Paths.get(System.getProperty("java.io.tmpdir"), "gitlet-" + user);
+        try {
+            Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } catch (FileAlreadyExistsException excp) {
+            // made by an earlier daemon, or by someone else; checked below
+        }
+        UserPrincipal owner = directory.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(user);
+        PosixFileAttributes attributes = Files.readAttributes(directory, PosixFileAttributes.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory() || !attributes.owner().equals(owner)
+                || !attributes.permissions().equals(OWNER_ONLY))
+            throw new IOException("Unsafe gitlet daemon directory " + directory
+                    + ": it must be a directory owned by " + user + " and closed to other users.");
+        return directory.toFile();
+    }
+
+    /**
+     * Return a connection to the daemon serving DIRECTORY, or null if there's none
+     */
+    static SocketChannel connect(File directory) throws IOException {
+        File socket;
+        try {
+            socket = socketFile(directory);
+        } catch (IOException excp) {
+            return null; // no daemon can be trusted to serve it
+        }
+        if (!socket.exists()) return null;
+        try {
+            return SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Run the command ARGS in the daemon serving the current directory, copying its output to
+     * System.out and System.err. Return its exit code, or NO_DAEMON if there's no daemon
+     */
+    static int forward(String[] args) throws IOException {
+        SocketChannel channel = connect(new File(System.getProperty("user.dir")));
+        if (channel == null) return NO_DAEMON;
+        try (channel) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(args.length);
+            for (String arg: args) request.writeUTF(arg);
+            request.flush();
+
+            DataInputStream reply = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                byte kind = reply.readByte();
+                if (kind == EXIT) return reply.readInt();
+                byte[] output = new byte[reply.readInt()];
+                reply.readFully(output);
+                if (kind == OUT) System.out.write(output, 0, output.length);
+                else System.err.write(output, 0, output.length);
+            }
+        }
+    }
+}
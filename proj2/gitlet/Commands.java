@@ -1,47 +1,37 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
 import static gitlet.Repository.*;
 
 public class Commands {
     // Helpers /////////////////////////////////////////////////////////////////
     /**
-     * Helper method to serialize the given commit
+     * Helper method to serialize the given commit, after whatever nodes of its map of files aren't stored yet
      */
-    private static File createNecessaryFile(File first, String... others) throws IOException {
-        if (!first.exists()) first.mkdir();
-        File filePath = first;
-        for (int i = 0; i < others.length; ++i) {
-            filePath = Utils.join(filePath, others[i]);
-            if (filePath.exists()) continue;
-            if (i == others.length - 1) filePath.createNewFile();
-            else filePath.mkdir();
-        }
-        return filePath;
-    }
-
     private static void writeCommit(Commit commit) throws IOException {
-        String commitID = commit.getSHAHash();
-        String folderName = commitID.substring(0, 2), commitFileName = commitID.substring(2);
-        File commitObjectFile = createNecessaryFile(Repository.GITLET_DIR, "objects", folderName, commitFileName);
-        Utils.writeObject(commitObjectFile, commit);
+        ObjectId id = commit.getID();
+        commit.fileToContent.store();
+        ObjectStore.writeLoose(ObjectStore.COMMIT, id, commit.encode());
+        CommitGraph.add(id, commit);
+        MessageIndex.add(id, commit);
     }
 
     private static void moveCommitToDisk(Commit commit) throws IOException {
         // write the given commit to commit tree and its underlying file
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+        // (content of the staged files is already in the blob store, saved by add)
+        CommitTree commitTree = getCommitTree();
         commitTree.updateHead(commit);
-        Utils.writeObject(COMMIT_TREE, commitTree);
+        writeCommitTree(commitTree);
         writeCommit(commit);
 
-        // write each modified file to history storage
-        Stage stage = Utils.readObject(STAGING_AREA, Stage.class);
-        backupModifiedFile(stage.fileNameToContent.keySet(), commit.getSHAHash());
-
         // clear the staging area
-        Utils.writeObject(STAGING_AREA, new Stage());
+        Stage stage = getStagingArea();
+        stage.clear();
+        writeStagingArea(stage);
     }
 
     /**
@@ -49,65 +39,42 @@ public class Commands {
      */
     private static void checkFileExists(String fileName) {
         File fileToBeAdded = Utils.join(fileName);
-        if (!fileToBeAdded.exists()) GitletException.handleException("File does not exist.");
+        if (!fileToBeAdded.isFile()) GitletException.handleException("File does not exist.");
     }
 
     /**
      * Helper method to return the head commit
      */
     private static Commit getHeadCommit() {
-        File commitTreeFile = Utils.join(Repository.GITLET_DIR, "commit_tree");
-        CommitTree commitTree = Utils.readObject(commitTreeFile, CommitTree.class);
-        return commitTree.head;
+        return getCommitTree().getHead();
     }
 
     /**
-     * Helper method to return SHA hash of a file's content
-     */
-    private static String getSHAOfFile(String fileName) {
-        File file = Utils.join(fileName);
-        String content = Utils.readContentsAsString(file);
-        return Utils.sha1(content);
-    }
-
-    /**
-     * Helper method to back up modified file in history storage
-     */
-    private static void backupModifiedFile(Set<String> modifiedFiles, String SHA) throws IOException {
-        for (String fileName: modifiedFiles) {
-            createNecessaryFile(BACKUP_DIR, SHA, fileName);
-            File fileToStoreInHistory = Utils.join(BACKUP_DIR, SHA, fileName);
-            File fileInWorkingDirectory = Utils.join(fileName);
-            Utils.writeContents(fileToStoreInHistory, Utils.readContents(fileInWorkingDirectory));
-        }
-    }
-
-    /**
-     * Helper method to return staging area object
+     * Helper method to return staging area object, read once per command
      */
     private static Stage getStagingArea() {
-        return Utils.readObject(STAGING_AREA, Stage.class);
+        return Session.current().stage();
     }
 
     /**
-     * Helper method to read commit tree
+     * Helper method to read commit tree, once per command
      */
     private static CommitTree getCommitTree() {
-        return Utils.readObject(COMMIT_TREE, CommitTree.class);
+        return Session.current().commitTree();
     }
 
     /**
-     * Helper method to write commit tree
+     * Helper method to write commit tree, when the command ends
      */
     private static void writeCommitTree(CommitTree commitTree) {
-        Utils.writeObject(COMMIT_TREE, commitTree);
+        Session.current().commitTreeChanged(commitTree);
     }
 
     /**
-     * Helper method to serialize staging area
+     * Helper method to write staging area, when the command ends
      */
     private static void writeStagingArea(Stage stage) {
-        Utils.writeObject(STAGING_AREA, stage);
+        Session.current().stageChanged(stage);
     }
 
     /**
@@ -148,34 +115,14 @@ public class Commands {
         String SHA = commit.getSHAHash();
         System.out.println("===");
         System.out.printf("commit %s\n", SHA);
-        if (commit.secondParent != null)
-            System.out.println("Merge: " + commit.parent.getSHAHash().substring(0, 7) + " " + commit.secondParent.getSHAHash().substring(0, 7));
+        if (commit.secondParentID != null)
+            System.out.println("Merge: " + commit.parentID.toString().substring(0, 7) + " "
+                    + commit.secondParentID.toString().substring(0, 7));
         System.out.printf("Date: %s\n", getCommitTime(commitTime));
         System.out.println(commit.message);
         System.out.println();
     }
 
-    /**
-     * Helper method to collect all commits in history
-     *  1. Find all subdirectories under object directory
-     *  2. For each subdirectory, fetch all files within it
-     *  3. Deserialize the file into commit object and put it into the result list
-     */
-    private static List<Commit> getAllCommits() {
-        List<Commit> commits = new ArrayList<>();
-        List<String> directoryNames = Utils.directoriesNamesIn(Repository.OBJECTS_DIR);
-        for (String directoryName: directoryNames) {
-            File directory = Utils.join(Repository.OBJECTS_DIR, directoryName);
-            List<String> fileNames = Utils.plainFilenamesIn(directory);
-            for (String fileName: fileNames) {
-                File commitFile = Utils.join(directory, fileName);
-                Commit commit = Utils.readObject(commitFile, Commit.class);
-                commits.add(commit);
-            }
-        }
-        return commits;
-    }
-
 //    /**
 //     * Helper method to handle the exception that the given commit doesn't exist
 //     */
@@ -185,55 +132,80 @@ public class Commands {
 //    }
 
     /**
-     * Helper method to check out file in the given commit
+     * Helper method to check out the version of a file whose content has the given SHA
      */
-    private static void checkoutFile(String commitSHAHash, String fileName) throws IOException {
-        overwrite(fileName, commitSHAHash);
+    private static void checkoutFile(ObjectId SHAOfContent, String fileName) throws IOException {
         Stage stage = getStagingArea();
+        checkoutFile(SHAOfContent, fileName, stage, new WorkingTree(stage));
+        writeStagingArea(stage);
+    }
+
+    /**
+     * Helper method to check out a file as part of a command that writes the staging area itself
+     */
+    private static void checkoutFile(ObjectId SHAOfContent, String fileName, Stage stage, WorkingTree workingTree)
+            throws IOException {
+        WorkingTree.write(fileName, SHAOfContent);
         stage.unstageFileIfAdded(fileName);
-        Utils.writeObject(STAGING_AREA, stage);
+        workingTree.written(fileName, SHAOfContent);
     }
 
     /**
-     * Helper method to return the commit with given id
+     * Helper method to return the commit with given id, which may be abbreviated to any prefix
+     * that no other commit id starts with
      */
     private static Commit getCommit(String id) {
-        String folderName = id.substring(0, 2), commitFileName = id.substring(2);
-        File commitFile = null;
-        if (commitFileName.length() == 38)
-                commitFile = Utils.join(OBJECTS_DIR, folderName, commitFileName);
-        else {
-            File commitDirectory = Utils.join(OBJECTS_DIR, folderName);
-            for (File candidateCommitFile: commitDirectory.listFiles())
-                if (commitFileName.equals(candidateCommitFile.getName().substring(0, commitFileName.length()))) {
-                    commitFile = candidateCommitFile;
-                    break;
-                }
+        List<ObjectId> candidates = CommitIndex.read().idsWithPrefix(id);
+        if (candidates.isEmpty()) GitletException.handleException("No commit with that id exists.");
+        if (candidates.size() > 1) {
+            StringBuilder message = new StringBuilder("Commit id " + id + " is ambiguous; it could be:");
+            for (ObjectId candidate: candidates) message.append("\n").append(candidate);
+            GitletException.handleException(message.toString());
         }
-        if (commitFile == null || !commitFile.exists()) GitletException.handleException("No commit with that id exists.");
-        return Utils.readObject(commitFile, Commit.class);
+        return Session.current().commit(candidates.get(0));
     }
 
     /**
      * Helper method called by checkout & reset, restore the snapshot of the given commit
-     *  1. Restore files in the working directory to be the image of the given commit
-     *  2. Delete files in the working directory not in the image of the given commit
+     *  1. Write the files that differ between head and the given commit, and the staged ones that
+     *     the given commit has, as clearing the stage drops their staged changes
+     *  2. Delete files tracked by head that are not in the image of the given commit
      *  3. Clear staging area
+     * Files both commits have the same version of are left as they are, so switching between
+     * commits costs as much as their difference, and finding it skips the directories they share.
+     * Files are written in parallel; one that can't be written or deleted is reported and keeps
+     * its old content, which status then shows as modified, while the checkout goes on
      */
     private static void checkoutCommit(Commit commit) throws IOException {
-        Map<String, String> fileToCommit = commit.fileToCommit;
-        List<String> filesInWorkingDirectory = Utils.plainFilenamesIn(Repository.CWD);
         Commit head = getHeadCommit();
-        for (String fileName: fileToCommit.keySet())
-            if (filesInWorkingDirectory.contains(fileName) && !head.containsFile(fileName))
+        Map<String, ObjectId> filesToWrite = new HashMap<>();
+        List<String> addedFiles = new ArrayList<>(), removedFiles = new ArrayList<>();
+        FileMap.diff(head.fileToContent, commit.fileToContent, (fileName, inHead, inCommit) -> {
+            if (inHead == null) addedFiles.add(fileName);
+            if (inCommit == null) removedFiles.add(fileName);
+            else filesToWrite.put(fileName, inCommit);
+        });
+        for (String fileName: addedFiles)
+            if (new File(fileName).exists())
                 GitletException.handleException("There is an untracked file in the way; delete it, or add and commit it first.");
-        for (String fileName: fileToCommit.keySet())
-            checkoutFile(fileToCommit.get(fileName), fileName);
-        for (String fileName: filesInWorkingDirectory)
-            if (!fileToCommit.containsKey(fileName) && !isNecessaryFile(fileName)) Utils.restrictedDelete(fileName);
+        Stage stage = getStagingArea();
+        List<String> stagedFiles = new ArrayList<>(stage.fileNameToContent.keySet());
+        stagedFiles.addAll(stage.removalFileSet);
+        for (String fileName: stagedFiles)
+            if (commit.containsFile(fileName)) filesToWrite.putIfAbsent(fileName, commit.getFileContent(fileName));
+
+        WorkingTree workingTree = new WorkingTree(stage);
+        Map<String, String> failures = workingTree.writeAll(filesToWrite);
+        for (String fileName: removedFiles) {
+            if (WorkingTree.delete(fileName)) workingTree.deleted(fileName);
+            else failures.put(fileName, "could not delete it");
+        }
+        for (Map.Entry<String, String> failure: failures.entrySet())
+            System.out.println("Could not check out " + failure.getKey() + ": " + failure.getValue());
 
         // clear staging area
-        Utils.writeObject(Utils.join(Repository.GITLET_DIR, "staging_area"), new Stage());
+        stage.clear();
+        writeStagingArea(stage);
     }
 
     /**
@@ -246,171 +218,58 @@ public class Commands {
         return false;
     }
 
-    /**
-     * Helper method called by merge, to find the first common ancestor of 2 commits
-     *  See Leetcode offer52 for detail of solution
-     */
-    private static Commit findFirstCommonAncestor(Commit commitA, Commit commitB) {
-//        Commit h1 = commitA, h2 = commitB;
-//        while (h1 != null || h2 != null) {
-//            if (equalCommits(h1, h2)) break;
-//            if (h1 == null) h1 = commitB;
-//            else h1 = h1.parent;
-//            if (h2 == null) h2 = commitA;
-//            else h2 = h2.parent;
-//        }
-//        return h1;
-        Set<Commit> ancestorsOfA = new HashSet<>();
-        ancestorsOfA.add(commitA);
-        collectAncestors(ancestorsOfA, commitA);
-        Queue<Commit> ancestorQueue = new LinkedList<>();
-        ancestorQueue.add(commitB);
-        while (!ancestorQueue.isEmpty()) {
-            Commit commit = ancestorQueue.poll();
-            if (ancestorsOfA.contains(commit)) return commit;
-            if (commit.parent != null) ancestorQueue.add(commit.parent);
-            if (commit.secondParent != null) ancestorQueue.add(commit.secondParent);
-        }
-        return null;
-    }
-
-    private static void collectAncestors(Set<Commit> ancestors, Commit commit) {
-        if (commit.parent != null) {
-            ancestors.add(commit.parent);
-            collectAncestors(ancestors, commit.parent);
-        }
-        if (commit.secondParent != null) {
-            ancestors.add(commit.secondParent);
-            collectAncestors(ancestors, commit.secondParent);
-        }
-
-    }
-
     /**
      * Helper method called by merge to handle the 3rd case: divergence
-     */
-    private static boolean handleCoreMerge (Commit head, Commit branch, Commit split) throws IOException {
-        Set<String> files = getFileSet(head, branch, split);
-        for (File fileInCWD: CWD.listFiles()) {
-            String fileName = fileInCWD.getName();
-            if (!head.containsFile(fileName) && branch.containsFile(fileName)) {
-                if (!split.containsFile(fileName))
-                    GitletException.handleException("There is an untracked file in the way; delete it, or add and commit it first.");
-                if (!split.getFileContent(fileName).equals(branch.getFileContent(fileName)))
-                    GitletException.handleException("There is an untracked file in the way; delete it, or add and commit it first.");
-            }
-        }
-        boolean hasConflict  = false;
-        for (String fileName: files) {
-            String contentInSplit = split.getFileContent(fileName), contentInHead = head.getFileContent(fileName),
-                    contentInBranch = branch.getFileContent(fileName);
-
-            if (!split.containsFile(fileName)) {
-                // case 5
-                if (branch.containsFile(fileName) && !head.containsFile(fileName)) {
-                    checkoutFile(branch.getSHAHash(), fileName);
-                    add(new String[]{"add", fileName});
-                }
-                else if (branch.containsFile(fileName) && head.containsFile(fileName) &&
-                        !contentInBranch.equals(contentInHead)) {
-                    resolveConflict(fileName, head, branch);
-                    hasConflict = true;
-                }
-            }
-            else if (!head.containsFile(fileName)) {
-                if (branch.containsFile(fileName) && !contentInBranch.equals(contentInSplit)) {
-                    resolveConflict(fileName, head, branch);
-                    hasConflict = true;
-                }
-                // case 7
-                else if (branch.containsFile(fileName) && contentInBranch.equals(contentInSplit)) {
-                    Stage stage = getStagingArea();
-                    stage.addFileToRemove(fileName);
-                    Utils.writeObject(STAGING_AREA, stage);
-                }
-            }
-            else if (!branch.containsFile(fileName)) {
-                // case 6
-                if (contentInHead.equals(contentInSplit)) rm(new String[]{"rm", fileName});
-                else {
-                    resolveConflict(fileName, head, branch);
-                    hasConflict = true;
-                }
-            }
-            else {
-                // case 1
-                if (contentInSplit.equals(contentInHead) && !contentInSplit.equals(contentInBranch)) {
-                    checkoutFile(branch.getSHAHash(), fileName);
-                    add(new String[]{"add", fileName});
-                }
-                else if (!contentInSplit.equals(contentInHead) && !contentInSplit.equals(contentInBranch) &&
-                        !contentInHead.equals(contentInBranch)) {
-                    resolveConflict(fileName, head, branch);
-                    hasConflict = true;
-                }
-            }
-        }
-        return hasConflict;
-    }
-
-    /**
-     * Helper method called by handleCoreMerge
-     *  to overwrite a file in working directory with the version in a commit
-     */
-    private static void overwrite(String fileName, String commitSHAHash) throws IOException {
-        File commitBackup = Utils.join(Repository.BACKUP_DIR, commitSHAHash, fileName);
-        byte[] contentOfBackup = Utils.readContents(commitBackup);
-        File fileInWorkingDirectory = new File(fileName);
-        if (!fileInWorkingDirectory.exists()) fileInWorkingDirectory.createNewFile();
-        Utils.writeContents(fileInWorkingDirectory, contentOfBackup);
-    }
-
-    /**
-     * Helper method called by handleCoreMerge:
-     *  Given 3 commits, return union set of the files they track
-     */
-    private static Set<String> getFileSet(Commit head, Commit branch, Commit split) {
-        Set<String> files = new HashSet<>();
-        for (String fileName: head.fileToContent.keySet()) files.add(fileName);
-        for (String fileName: branch.fileToContent.keySet()) files.add(fileName);
-        for (String fileName: split.fileToContent.keySet()) files.add(fileName);
-        return files;
-    }
+     *  1. Work out the whole merge in memory (see Merge), failing before anything is written if
+     *     an untracked file is in the way
+     *  2. Write the files taken from the given branch in parallel, and merge the lines of those
+     *     both branches changed
+     *  3. Record every change on the stage in one pass
+     */
+    private static boolean handleCoreMerge (Commit head, Commit branch, Commit split, Stage stage,
+                                            WorkingTree workingTree) throws IOException {
+        Merge merge = Merge.of(head, branch, split);
+        for (String fileName: merge.untracked)
+            if (new File(fileName).exists())
+                GitletException.handleException("There is an untracked file in the way; delete it, or add and commit it first.");
 
-    /**
-     * Helper method to resolves conflicts in files in 2 different branches
-     */
-    private static void resolveConflict(String fileName, Commit head, Commit branch) throws IOException {
-        String headContent = "", branchContent = "";
-        if (head.containsFile(fileName)) {
-            File headFile = Utils.join(Repository.BACKUP_DIR, head.getSHAHash(), fileName);
-            headContent = Utils.readContentsAsString(headFile);
+        Map<String, ObjectId> result = new TreeMap<>(merge.taken);
+        Map<String, String> failures = workingTree.writeAll(merge.taken);
+        boolean hasConflict = false;
+        for (Map.Entry<String, ObjectId[]> conflict: merge.conflicts.entrySet()) {
+            String fileName = conflict.getKey();
+            ObjectId[] SHAs = conflict.getValue();
+            Merge.Content content = Merge.content(SHAs[0], SHAs[1], SHAs[2]);
+            hasConflict |= content.conflicted;
+            ObjectId SHA = ObjectId.hash((Object) content.bytes);
+            // replaced rather than written through, in case it's a read-only link to its blob
+            File file = WorkingTree.prepare(fileName);
+            file.delete();
+            Utils.writeContents(file, (Object) content.bytes);
+            workingTree.written(fileName, SHA);
+            BlobStore.save(SHA, file);
+            result.put(fileName, SHA);
         }
-        if (branch.containsFile(fileName)) {
-            File branchFile = Utils.join(Repository.BACKUP_DIR, branch.getSHAHash(), fileName);
-            branchContent = Utils.readContentsAsString(branchFile);
+        for (String fileName: merge.deleted) {
+            if (WorkingTree.delete(fileName)) workingTree.deleted(fileName);
+            else failures.put(fileName, "could not delete it");
         }
+        for (Map.Entry<String, String> failure: failures.entrySet())
+            System.out.println("Could not check out " + failure.getKey() + ": " + failure.getValue());
 
-        File currentFile = Utils.join(Repository.CWD, fileName);
-        if (!currentFile.exists()) currentFile.createNewFile();
-        String newContent = "<<<<<<< HEAD\n";
-        newContent += headContent;
-        newContent += "=======\n";
-        newContent += branchContent;
-        newContent += ">>>>>>>\r\n";
-        Utils.writeContents(currentFile, newContent);
-        add(new String[]{"add", fileName});
-//        String contents = Utils.readContentsAsString(currentFile);
-//        System.out.print(contents);
+        for (Map.Entry<String, ObjectId> file: result.entrySet())
+            if (head.isFileModified(file.getKey(), file.getValue())) stage.addFile(file.getKey(), file.getValue());
+        for (String fileName: merge.deleted) stage.addFileToRemove(fileName);
+        return hasConflict;
     }
 
     /**
      * Helper method to assemble file contents in stage and previous commit (i.e., head)
      * This will be called by command status, to show files modified but not staged, and untracked
      */
-    private static Map<String, String> getTrackedFileToContent(Map<String, String> fileToContentOnStage,
-                                                               Map<String, String> fileToContentInHead) {
-        Map<String, String> res = new HashMap<>();
+    private static Map<String, ObjectId> getTrackedFileToContent(Map<String, ObjectId> fileToContentOnStage,
+                                                                 Map<String, ObjectId> fileToContentInHead) {
+        Map<String, ObjectId> res = new HashMap<>();
         for (String fileName: fileToContentInHead.keySet())
             res.put(fileName, fileToContentInHead.get(fileName));
         for (String fileName: fileToContentOnStage.keySet())
@@ -433,11 +292,53 @@ public class Commands {
     }
 
     /**
-     * Tell if the given file is the necessary configuration file for the project
-     * If so we cannot delete it
+     * Helper method called by diff, to return the commit named by a branch name, or else by a
+     * commit id
      */
-    private static boolean isNecessaryFile(String fileName) {
-        return fileName.equals("gitlet1.iml") || fileName.equals("Makefile") || fileName.equals("pom.xml");
+    private static Commit getCommitNamed(String name) {
+        Commit commit = getCommitTree().getCommitOfBranch(name);
+        return commit != null ? commit : getCommit(name);
+    }
+
+    /**
+     * Helper method called by diff, to return the files of FILES at PATH: the file itself, or the
+     * files below it if it's a directory, or all of them if PATH is null. Only the files at PATH are
+     * visited, through the directory of FILES that holds them
+     */
+    private static Map<String, ObjectId> getFilesAt(FileMap files, String path) {
+        if (path == null) return files;
+        Map<String, ObjectId> res = new TreeMap<>();
+        if (files.containsKey(path)) res.put(path, files.get(path));
+        for (Map.Entry<String, ObjectId> file: files.directory(path).entrySet())
+            res.put(path + "/" + file.getKey(), file.getValue());
+        return res;
+    }
+
+    /**
+     * Helper method called by diff, to return true if FILENAME is at PATH, as getFilesAt takes it
+     */
+    private static boolean isAt(String fileName, String path) {
+        return path == null || fileName.equals(path) || fileName.startsWith(path + "/");
+    }
+
+    /**
+     * Helper method called by diff, to print the difference between BEFORE and AFTER, the contents
+     * of the file FILENAME, either of which is null where the file doesn't exist
+     */
+    private static void printFileDiff(PrintStream out, String fileName, byte[] before, byte[] after) {
+        out.print("diff --git a/" + fileName + " b/" + fileName + "\n");
+        if (before == null) out.print("new file\n");
+        if (after == null) out.print("deleted file\n");
+        if (before != null && Diff.isBinary(before) || after != null && Diff.isBinary(after)) {
+            out.print("Binary files " + (before == null ? "/dev/null" : "a/" + fileName) + " and "
+                    + (after == null ? "/dev/null" : "b/" + fileName) + " differ\n");
+            return;
+        }
+        out.print("--- " + (before == null ? "/dev/null" : "a/" + fileName) + "\n");
+        out.print("+++ " + (after == null ? "/dev/null" : "b/" + fileName) + "\n");
+        List<String> beforeLines = Diff.lines(before == null ? new byte[0] : before);
+        List<String> afterLines = Diff.lines(after == null ? new byte[0] : after);
+        Diff.printUnified(out, beforeLines, afterLines, Diff.diff(beforeLines, afterLines));
     }
 
     // Commands /////////////////////////////////////////////////////////////////
@@ -451,10 +352,16 @@ public class Commands {
     static void init(String[] args) throws IOException {
         // create metadata directory
         if (args.length != 1) GitletException.handleException("Incorrect operands.");
+        int format = Integer.getInteger("gitlet.format", Repository.FORMAT_VERSION);
+        if (format < 0 || format > Repository.FORMAT_VERSION)
+            GitletException.handleException("Unsupported repository format " + format + ".");
         File metadataFolder = Utils.join(".gitlet");
         if (metadataFolder.exists())
             GitletException.handleException("A Gitlet version-control system already exists in the current directory.");
         else metadataFolder.mkdir();
+        Session.current().discard();
+        Repository.writeFormatVersion(format);
+        ObjectStore.reload();
 
         // create the initial commit
         Commit initialCommit = Utils.initialCommit();
@@ -462,20 +369,18 @@ public class Commands {
 
         // create commit tree and write the initial commit to the commit tree
         CommitTree commitTree = new CommitTree(initialCommit);
-        File commitTreeFile = Utils.join(Repository.GITLET_DIR, "commit_tree");
-        if (!commitTreeFile.exists()) commitTreeFile.createNewFile();
-        Utils.writeObject(commitTreeFile, commitTree);
+        writeCommitTree(commitTree);
 
         // create staging area so that we could perform any operation later (e.g., add, rm)
-        STAGING_AREA.createNewFile();
-        Utils.writeObject(STAGING_AREA, new Stage());
+        writeStagingArea(new Stage());
+        Session.current().end();
     }
 
     /**
      * Execute add command:
      *  1. If the file is not staged:
      *      (1) if it's not modified since last commit, do not stage it
-     *      (2) if it's modified, stage it
+     *      (2) if it's modified, stage it and save its content in the blob store
      *  2. If the file is staged:
      *      (1) if it's different from the version in last commit, overwrite the one on the stage
      *      (2) if it's identical to the version in last commit, unstage it
@@ -483,30 +388,32 @@ public class Commands {
     static void add(String[] args) throws IOException {
         // check possible failure cases
         if (args.length != 2) GitletException.handleException("Incorrect operands.");
-        checkFileExists(args[1]);
-
-        // read staging area from file
-        Stage stage;
-        if (!STAGING_AREA.exists()) {
-            STAGING_AREA.createNewFile();
-            stage = new Stage();
-        } else stage = Utils.readObject(STAGING_AREA, Stage.class);
+        String fileName = WorkingTree.pathOf(args[1]);
+        checkFileExists(fileName);
 
-        // fetch info about last commit
-        Commit head = getHeadCommit();
+        // stage the file, then write the updated staging area back to file
+        Stage stage = getStagingArea();
+        stageFile(fileName, getHeadCommit(), stage, new WorkingTree(stage));
+        writeStagingArea(stage);
+        Session.current().end();
+    }
 
+    /**
+     * Helper method called by add & merge, to stage the given file if it's modified since HEAD,
+     * or unstage it otherwise
+     */
+    private static void stageFile(String fileName, Commit head, Stage stage, WorkingTree workingTree)
+            throws IOException {
         // add given file to the staging area if it's modified since last commit
-        String fileName = args[1];
-        String SHAOfContent = getSHAOfFile(fileName);
-        if (head.isFileModified(fileName, SHAOfContent))
+        ObjectId SHAOfContent = workingTree.hashOf(fileName);
+        if (head.isFileModified(fileName, SHAOfContent)) {
+            BlobStore.save(SHAOfContent, Utils.join(fileName));
             stage.addFile(fileName, SHAOfContent);
+        }
         else stage.unstageFileIfAdded(fileName);
 
         // get file out of removal set, this could happen when we remove a file, then add it back
         if (stage.removalFileSet.contains(fileName)) stage.unremoveFile(fileName);
-
-        // write the updated staging area back to file
-        Utils.writeObject(STAGING_AREA, stage);
     }
 
     /**
@@ -517,8 +424,7 @@ public class Commands {
      *  2. Read info about last commit and staging area
      *  3. Update entries in last commit with content in staging area to create new commit
      *  4. Write new commit into commit tree and commit directory
-     *  5. store modified file to corresponding history storage
-     *  6. Clear the staging area
+     *  5. Clear the staging area
      */
     static void commit(String[] args) throws IOException {
         // check message of the commit exists
@@ -530,6 +436,7 @@ public class Commands {
 
         // write commit tree, commit and files modified in this commit to disk
         moveCommitToDisk(current);
+        Session.current().end();
     }
 
     /**
@@ -541,7 +448,7 @@ public class Commands {
     static void rm(String[] args) {
         // exception handling
         if (args.length != 2) GitletException.handleException("Incorrect operands.");
-        String fileName = args[1];
+        String fileName = WorkingTree.pathOf(args[1]);
         Commit head = getHeadCommit();
         Stage stage = getStagingArea();
         if (!head.containsFile(fileName) && !stage.hasFile(fileName))
@@ -551,56 +458,62 @@ public class Commands {
         if (stage.hasFile(fileName)) stage.unstageFileIfAdded(fileName);
         else if (head.containsFile(fileName)) {
             stage.addFileToRemove(fileName);
-            Utils.restrictedDelete(fileName);
+            WorkingTree.delete(fileName);
+            stage.forget(fileName);
         }
 
         // write staging area back to disk
         writeStagingArea(stage);
+        Session.current().end();
     }
 
     /**
      * Execute log command:
      *  1. Find the head commit
-     *  2. Follow the parent pointer backwards to print info of commits in the history
+     *  2. Follow first parents backwards in the commit-graph, loading each commit only to print its info
      */
     static void log(String[] args) {
         if (args.length != 1) GitletException.handleException("Incorrect operands.");
-        Commit commit = getHeadCommit();
-        while (commit != null) {
-            printCommitLog(commit);
-            commit = commit.parent;
-        }
+        ObjectId headID = getCommitTree().headID;
+        CommitGraph graph = CommitGraph.covering(headID);
+        for (int index = graph.indexOf(headID); index != CommitGraph.NONE; index = graph.parentAt(index))
+            printCommitLog(Session.current().commit(graph.idAt(index)));
+        Session.current().end();
     }
 
     /**
      * Execute global-log command:
-     *  1. Get all commits in the history
-     *  2. For each of them, print its info as log
+     *  1. Stream all commits in the history, in id order, loading them in parallel
+     *     unless the gitlet.parallel system property is false
+     *  2. For each of them, print its info as log as soon as it's loaded
      */
     static void globalLog(String[] args) {
         if (args.length != 1) GitletException.handleException("Incorrect operands.");
 
-        List<Commit> commits = getAllCommits();
-        for (Commit commit: commits)
-            printCommitLog(commit);
+        CommitStream commits = new CommitStream(!"false".equals(System.getProperty("gitlet.parallel")));
+        while (commits.hasNext())
+            printCommitLog(commits.next());
+        Session.current().end();
     }
 
     /**
      * Execute find command:
-     *  1. Get all commits in the history
-     *  2. For each of them, if it's message matches the given one, print its SHA id
+     *  1. Look up the commits with the given message in the message index
+     *     (or, with --word, those whose message has all the given words,
+     *     and with --contains, those whose message contains the given text)
+     *  2. Print their SHA ids
      */
     static void find(String[] args) {
-        if (args.length != 2) GitletException.handleException("Incorrect operands.");
-        List<Commit> commits = getAllCommits();
-        boolean hasFound = false;
+        Set<ObjectId> ids = null;
+        if (args.length == 2) ids = MessageIndex.withMessage(args[1]);
+        else if (args.length == 3 && args[1].equals("--word")) ids = MessageIndex.withWords(args[2]);
+        else if (args.length == 3 && args[1].equals("--contains")) ids = MessageIndex.containing(args[2]);
+        else GitletException.handleException("Incorrect operands.");
 
-        for (Commit commit: commits)
-            if (commit.message.equals(args[1])) {
-                System.out.println(commit.getSHAHash());
-                hasFound = true;
-            }
-        if (!hasFound) GitletException.handleException("Found no commit with that message.");
+        if (ids.isEmpty()) GitletException.handleException("Found no commit with that message.");
+        for (ObjectId id: ids)
+            System.out.println(id);
+        Session.current().end();
     }
 
     /**
@@ -611,14 +524,14 @@ public class Commands {
      *  4. Display files modified but not staged
      *  5. Display files untracked
      */
-    static void status(String[] args) {
+    static void status(String[] args) throws IOException {
         // Exception handling
         if (args.length != 1) GitletException.handleException("Incorrect operands.");
         if (!GITLET_DIR.exists()) GitletException.handleException("Not in an initialized Gitlet directory.");
         Stage stage = getStagingArea();
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
-        Map<String, String> trackedFileToContent = getTrackedFileToContent(stage.fileNameToContent,
-                                                                    commitTree.head.fileToContent);
+        CommitTree commitTree = getCommitTree();
+        Map<String, ObjectId> trackedFileToContent = getTrackedFileToContent(stage.fileNameToContent,
+                                                                    commitTree.getHead().fileToContent);
 
         // Display info of possible branches
         System.out.println("=== Branches ===");
@@ -642,13 +555,18 @@ public class Commands {
 
         // Display files modified but not staged
         System.out.println("=== Modifications Not Staged For Commit ===");
+        WorkingTree workingTree = new WorkingTree(stage);
+        List<String> trackedFilesInWorkingDirectory = new ArrayList<>();
+        for (String fileName: trackedFileToContent.keySet())
+            if (new File(fileName).exists()) trackedFilesInWorkingDirectory.add(fileName);
+        workingTree.hashAll(trackedFilesInWorkingDirectory);
         for (String fileName: getItemsInOrder(trackedFileToContent.keySet())) {
             File file = new File(fileName);
             if (!file.exists()) {
                 if (!stage.removalFileSet.contains(fileName)) System.out.printf("%s (deleted)\n", fileName);
             }
             else {
-                String SHAOfCurrentContent = Utils.sha1(Utils.readContents(Utils.join(fileName)));
+                ObjectId SHAOfCurrentContent = workingTree.hashOf(fileName);
                 if (!SHAOfCurrentContent.equals(trackedFileToContent.get(fileName)))
                     System.out.printf("%s (modified)\n", fileName);
             }
@@ -657,11 +575,85 @@ public class Commands {
 
         // Display files untracked
         System.out.println("=== Untracked Files ===");
-        List<String> fileNames = Utils.plainFilenamesIn(Repository.CWD);
-        Collections.sort(fileNames);
-        for (String fileName: fileNames)
+        for (String fileName: WorkingTree.listFiles())
             if (!trackedFileToContent.containsKey(fileName)) System.out.println(fileName);
         System.out.println();
+
+        // remember the SHAs of the files that had to be hashed, so the next status doesn't hash them again
+        if (stage.filesHashed > 0) writeStagingArea(stage);
+        Session.current().end();
+    }
+
+    /**
+     * Execute diff command, printing in the unified format how files differ:
+     *  1. diff [-- path], between the stage (files of head as staged) and the working files
+     *  2. diff [commit] [-- path], between the given commit and the working files
+     *  3. diff [commit] [commit] [-- path], between the two commits
+     * Commits are named by branch or by id; path is a file or a directory, and limits the diff
+     * to it. Files with the same SHA on both sides are skipped without being read: between commits
+     * by FileMap.diff, which also skips the directories they share, and against the working tree
+     * by the stat cache. Each file is diffed and printed on its own, so only one pair of files
+     * is held in memory at a time however large the commits are, with the SHAs of the others
+     */
+    static void diff(String[] args) throws IOException {
+        if (!GITLET_DIR.exists()) GitletException.handleException("Not in an initialized Gitlet directory.");
+        int operands = args.length;
+        String path = null;
+        if (args.length >= 3 && args[args.length - 2].equals("--")) {
+            path = WorkingTree.pathOrRootOf(args[args.length - 1]);
+            if (path.isEmpty()) path = null; // the whole working tree
+            operands -= 2;
+        }
+        if (operands > 3) GitletException.handleException("Incorrect operands.");
+        for (int i = 1; i < operands; ++i)
+            if (args[i].equals("--")) GitletException.handleException("Incorrect operands.");
+        Commit before = operands > 1 ? getCommitNamed(args[1]) : null;
+        Commit after = operands > 2 ? getCommitNamed(args[2]) : null;
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+
+        if (after != null) {
+            // the SHAs of the files that differ, in order; their content is read one file at a time
+            Map<String, ObjectId[]> changed = new TreeMap<>();
+            String prefix = path == null ? "" : path + "/";
+            FileMap.diff(path == null ? before.fileToContent : before.fileToContent.directory(path),
+                    path == null ? after.fileToContent : after.fileToContent.directory(path),
+                    (fileName, inBefore, inAfter) -> changed.put(prefix + fileName, new ObjectId[]{inBefore, inAfter}));
+            if (path != null && !Objects.equals(before.getFileContent(path), after.getFileContent(path)))
+                changed.put(path, new ObjectId[]{before.getFileContent(path), after.getFileContent(path)});
+            for (Map.Entry<String, ObjectId[]> file: changed.entrySet()) {
+                ObjectId inBefore = file.getValue()[0], inAfter = file.getValue()[1];
+                printFileDiff(out, file.getKey(), inBefore == null ? null : BlobStore.read(inBefore),
+                        inAfter == null ? null : BlobStore.read(inAfter));
+            }
+        }
+        else {
+            Stage stage = getStagingArea();
+            // the files at PATH as they'd be committed
+            Map<String, ObjectId> staged = new HashMap<>(getFilesAt(getHeadCommit().fileToContent, path));
+            for (Map.Entry<String, ObjectId> file: stage.fileNameToContent.entrySet())
+                if (isAt(file.getKey(), path)) staged.put(file.getKey(), file.getValue());
+            for (String fileName: stage.removalFileSet) staged.remove(fileName);
+            Map<String, ObjectId> beforeFiles = before == null ? staged : getFilesAt(before.fileToContent, path);
+            Set<String> fileNames = new TreeSet<>(beforeFiles.keySet());
+            fileNames.addAll(staged.keySet());
+
+            WorkingTree workingTree = new WorkingTree(stage);
+            List<String> existing = new ArrayList<>();
+            for (String fileName: fileNames)
+                if (new File(fileName).isFile()) existing.add(fileName);
+            workingTree.hashAll(existing);
+            for (String fileName: fileNames) {
+                ObjectId inBefore = beforeFiles.get(fileName);
+                boolean exists = new File(fileName).isFile();
+                if (exists ? workingTree.hashOf(fileName).equals(inBefore) : inBefore == null) continue;
+                printFileDiff(out, fileName, inBefore == null ? null : BlobStore.read(inBefore),
+                        exists ? Utils.readContents(new File(fileName)) : null);
+            }
+            // remember the SHAs of the files that had to be hashed, as status does
+            if (stage.filesHashed > 0) writeStagingArea(stage);
+        }
+        out.flush();
+        Session.current().end();
     }
 
     /**
@@ -676,34 +668,33 @@ public class Commands {
         if (args.length == 1 || args.length > 4) GitletException.handleException("Incorrect operands.");
 
         if (args.length == 2) {
-            CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+            CommitTree commitTree = getCommitTree();
             String branchName = args[1];
             if (commitTree.isCurrentBranch(branchName)) GitletException.handleException("No need to checkout the current branch.");
-            Commit commit = commitTree.getCommitOfBranch(branchName);
-            if (commit == null) GitletException.handleException("No such branch exists.");
-            String commitID = commit.getSHAHash();
-            Commit headCommitOfBranch = getCommit(commitID);
+            Commit headCommitOfBranch = commitTree.getCommitOfBranch(branchName);
+            if (headCommitOfBranch == null) GitletException.handleException("No such branch exists.");
             checkoutCommit(headCommitOfBranch);
 
             // update the current branch
             commitTree.updateBranch(branchName);
-            Utils.writeObject(COMMIT_TREE, commitTree);
+            writeCommitTree(commitTree);
         }
         else if (args.length == 3) {
             if (!args[1].equals("--")) GitletException.handleException("Incorrect operands.");
-            String fileName = args[2];
+            String fileName = WorkingTree.pathOf(args[2]);
             Commit head = getHeadCommit();
             if (!head.containsFile(fileName)) GitletException.handleException("File does not exist in that commit.");
-            checkoutFile(head.getCommitSHAOfFile(fileName), fileName);
+            checkoutFile(head.getFileContent(fileName), fileName);
         }
         else {
             if (!args[2].equals("--")) GitletException.handleException("Incorrect operands");
-            String commitID = args[1], fileName = args[3];
+            String commitID = args[1], fileName = WorkingTree.pathOf(args[3]);
             if (commitID.length() > 40 || commitID.length() < 6) GitletException.handleException("No commit with that id exists.");
             Commit commit = getCommit(commitID);
             if (!commit.containsFile(fileName)) GitletException.handleException("File does not exist in that commit.");
-            checkoutFile(commit.getCommitSHAOfFile(fileName), fileName);
+            checkoutFile(commit.getFileContent(fileName), fileName);
         }
+        Session.current().end();
     }
 
     /**
@@ -714,7 +705,7 @@ public class Commands {
         // Exception handling
         if (args.length != 2) GitletException.handleException("Incorrect operands.");
         String branchName = args[1];
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+        CommitTree commitTree = getCommitTree();
         if (commitTree.hasBranch(branchName)) GitletException.handleException("A branch with that name already exists.");
 
         // Add an entry in commit tree's branch info
@@ -722,7 +713,8 @@ public class Commands {
         commitTree.addBranch(branchName, current);
 
         // Write the commit tree object back to its file
-        Utils.writeObject(COMMIT_TREE, commitTree);
+        writeCommitTree(commitTree);
+        Session.current().end();
     }
 
     /**
@@ -740,6 +732,7 @@ public class Commands {
         // Remove the branch entry in commit tree and write the object back to the file
         commitTree.removeBranch(branchName);
         writeCommitTree(commitTree);
+        Session.current().end();
     }
 
     /**
@@ -756,6 +749,7 @@ public class Commands {
         CommitTree commitTree = getCommitTree();
         commitTree.resetBranch(commit);
         writeCommitTree(commitTree);
+        Session.current().end();
     }
 
     /**
@@ -774,25 +768,41 @@ public class Commands {
         if (!commitTree.hasBranch(branchName))
             GitletException.handleException("A branch with that name does not exist.");
         Commit head = getHeadCommit();
-        if (commitTree.getCommitOfBranch(branchName).equals(head.getSHAHash()))
+        if (commitTree.getCommitIDOfBranch(branchName).equals(head.getID()))
             GitletException.handleException("Cannot merge a branch with itself.");
 
-        // Get the split point of 2 branches
-        Commit branchCommit = getCommit(commitTree.getCommitOfBranch(branchName).getSHAHash());
-        Commit splitCommit = findFirstCommonAncestor(head, branchCommit);
+        // Find how the 2 branches are related in the commit-graph
+        ObjectId headID = head.getID(), branchID = commitTree.getCommitIDOfBranch(branchName);
+        CommitGraph graph = CommitGraph.covering(headID, branchID);
+        int headIndex = graph.indexOf(headID), branchIndex = graph.indexOf(branchID);
+        Commit branchCommit = commitTree.getCommitOfBranch(branchName);
 
-        if (head.equals(branchCommit)) GitletException.handleException("Cannot merge a branch with itself.");
-        else if (head.equals(splitCommit)) {
+        if (graph.isAncestor(headIndex, branchIndex)) {
             checkoutCommit(branchCommit);
             System.out.println("Current branch fast-forwarded.");
         }
-        else if (branchCommit.equals(splitCommit))
+        else if (graph.isAncestor(branchIndex, headIndex))
             System.out.println("Given branch is an ancestor of the current branch.");
         else {
-            boolean hasConflict = handleCoreMerge(head, branchCommit, splitCommit);
+            Commit splitCommit = Session.current().commit(graph.idAt(graph.mergeBase(headIndex, branchIndex)));
+            boolean hasConflict = handleCoreMerge(head, branchCommit, splitCommit, stage, new WorkingTree(stage));
+            writeStagingArea(stage);
             Commit current = new Commit(head, branchCommit, "Merged " + branchName + " into " + commitTree.currentBranchName + ".", new Date());
             if (hasConflict) System.out.println("Encountered a merge conflict.");
             moveCommitToDisk(current);
         }
+        Session.current().end();
+    }
+
+    /**
+     * Execute gc command:
+     *  1. Move all loose commits and blobs, and the contents of older packs, into one new pack
+     *  2. Delete the loose files and packs it replaces
+     */
+    static void gc(String[] args) throws IOException {
+        if (args.length != 1) GitletException.handleException("Incorrect operands.");
+        if (!GITLET_DIR.exists()) GitletException.handleException("Not in an initialized Gitlet directory.");
+        ObjectStore.repack();
+        Session.current().end();
     }
 }
@@ -2,19 +2,33 @@ package gitlet;
 
 // TODO: any imports you need here
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
 import java.util.*;
 
-import static gitlet.Repository.STAGING_AREA;
-
 /** Represents a gitlet commit object.
  *  TODO: It's a good idea to give a description here of what else this Class
  *  does at a high level.
  *
+ *  The files of a commit are a FileMap made from its parent's by applying the stage, so they
+ *  share every unchanged part of it with the parent. Commits are stored in a binary encoding
+ *  (see BinaryFormat):
+ *      "GCMT", version (1 byte), flags (1 byte),
+ *      if HAS_PARENT: id of the first parent, if HAS_SECOND_PARENT: id of the second parent,
+ *      time in milliseconds (8 bytes), message (string), id of the root of the FileMap (20 bytes)
+ *  Version 1 commits list their files in a path table instead of the id, and are still read.
+ *  Commits the original gitlet wrote with Java serialization are rewritten when its repository is
+ *  upgraded (see LegacyRepository); reading one otherwise fails with Repository.UNSUPPORTED_FORMAT.
+ *
  *  @author TODO
  */
-public class Commit implements Serializable {
+public class Commit {
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x47434d54; // "GCMT"
+    private static final int HAS_PARENT = 1, HAS_SECOND_PARENT = 2;
     /**
      * TODO: add instance variables here.
      *
@@ -23,14 +37,19 @@ public class Commit implements Serializable {
      * variable is used. We've provided one example for `message`.
      */
 
-    Map<String, String> fileToContent; // mapping file name to SHA of its content
-    Map<String, String> fileToCommit; // mapping file to id of the commit that the file is staged in
-    Commit parent;
-    Commit secondParent;
+    FileMap fileToContent; // mapping file name to SHA of its content
+    ObjectId parentID; // SHA of the first parent, null for the initial commit
+    ObjectId secondParentID; // SHA of the merged-in parent, null unless this is a merge commit
     String message;
     Date time;
     List<Object> objectsToHash;
 
+    /** Parents loaded on demand, never encoded, so a commit on disk only costs its own fields */
+    private Commit parent;
+    private Commit secondParent;
+    /** Id of this commit, computed on first use */
+    private ObjectId id;
+
     public Commit(Commit parent, String message, Date time) {
         setFields(parent, message, time);
         if (parent != null) {
@@ -42,63 +61,139 @@ public class Commit implements Serializable {
     public Commit(Commit parent, Commit secondParent, String message, Date time) {
         setFields(parent, message, time);
         this.secondParent = secondParent;
+        this.secondParentID = secondParent.getID();
+        // merge records every change from the first parent on the stage
         copyFromParent(parent);
-        copyFromParent(secondParent);
         applyStageToCommit();
     }
 
     private void setFields(Commit parent, String message, Date time) {
         this.parent = parent;
+        if (parent != null) this.parentID = parent.getID();
         this.message = message;
         this.time = time;
         this.objectsToHash = new ArrayList<>();
 
-        this.fileToCommit = new HashMap<>();
-        this.fileToContent = new HashMap<>();
+        this.fileToContent = FileMap.EMPTY;
     }
 
+    /**
+     * Put the files of PARENT in this commit, sharing its map
+     */
     private void copyFromParent(Commit parent) {
-        for (String fileName: parent.fileToCommit.keySet())
-            fileToCommit.put(fileName, parent.fileToCommit.get(fileName));
-        for (String fileName: parent.fileToContent.keySet())
-            fileToContent.put(fileName, parent.fileToContent.get(fileName));
+        fileToContent = parent.fileToContent;
     }
 
     private void applyStageToCommit() {
         // update entries in last commit to create current one
-        Stage stage = Utils.readObject(STAGING_AREA, Stage.class);
-        Map<String, String> stagedFileToContent = stage.fileNameToContent;
+        Stage stage = Session.current().stage();
+        Map<String, ObjectId> stagedFileToContent = stage.fileNameToContent;
         Set<String> removalFileSet = stage.removalFileSet;
         if (stagedFileToContent.isEmpty() && removalFileSet.isEmpty())
             GitletException.handleException("No changes added to the commit.");
 
         for (String fileName: stagedFileToContent.keySet())
-            fileToContent.put(fileName, stagedFileToContent.get(fileName));
-        for (String fileName: removalFileSet) {
-            fileToCommit.remove(fileName);
-            fileToContent.remove(fileName);
+            fileToContent = fileToContent.with(fileName, stagedFileToContent.get(fileName));
+        for (String fileName: removalFileSet)
+            fileToContent = fileToContent.without(fileName);
+    }
+
+    public String getSHAHash() {
+        return getID().toString();
+    }
+
+    /**
+     * Return the id of this commit: the SHA of its first parent, message, time and files.
+     * The files are hashed as the id of their FileMap, except that no files hash as "{}", as they
+     * did before commits had FileMaps, so the initial commit keeps the id it has in every repository
+     */
+    public ObjectId getID() {
+        if (id == null) {
+            if (objectsToHash.size() == 0) {
+                if (parentID != null) objectsToHash.add(parentID.toString());
+                objectsToHash.add(message);
+                objectsToHash.add(time.toString());
+                objectsToHash.add(fileToContent.isEmpty() ? "{}" : fileToContent.id().toString());
+            }
+            id = ObjectId.hash(objectsToHash.toArray());
         }
+        return id;
+    }
 
-        String SHAOfCurrent = getSHAHash();
-        for (String fileName: stagedFileToContent.keySet())
-            fileToCommit.put(fileName, SHAOfCurrent);
+    /**
+     * Return the commit with the given id, read from a pack or the objects directory
+     */
+    static Commit load(ObjectId id) {
+        byte[] bytes = ObjectStore.read(ObjectStore.COMMIT, id);
+        if (BinaryFormat.isSerialized(bytes)) Repository.unsupportedFormat();
+        Commit commit = decode(bytes);
+        commit.id = id;
+        return commit;
     }
 
-    public String getSHAHash() {
-        if (objectsToHash.size() == 0) {
-            if (parent != null) objectsToHash.add(parent.toString());
-            objectsToHash.add(message);
-            objectsToHash.add(time.toString());
-            objectsToHash.add(fileToContent.toString());
+    /**
+     * Return the binary encoding of this commit
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + message.length());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeByte((parentID != null ? HAS_PARENT : 0) | (secondParentID != null ? HAS_SECOND_PARENT : 0));
+            if (parentID != null) BinaryFormat.writeId(out, parentID);
+            if (secondParentID != null) BinaryFormat.writeId(out, secondParentID);
+            out.writeLong(time.getTime());
+            BinaryFormat.writeString(out, message);
+            BinaryFormat.writeId(out, fileToContent.id());
+        } catch (IOException excp) {
+            throw Utils.error("Internal error serializing commit.");
         }
-        return Utils.sha1(objectsToHash);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Return the commit whose binary encoding is BYTES
+     */
+    static Commit decode(byte[] bytes) {
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        int version = in.getInt() == MAGIC ? in.get() : -1;
+        if (version != 1 && version != VERSION) throw new IllegalArgumentException("Bad commit encoding");
+        Commit commit = new Commit(null, null, null);
+        int flags = in.get();
+        if ((flags & HAS_PARENT) != 0) commit.parentID = BinaryFormat.readId(in);
+        if ((flags & HAS_SECOND_PARENT) != 0) commit.secondParentID = BinaryFormat.readId(in);
+        commit.time = new Date(in.getLong());
+        commit.message = BinaryFormat.readString(in);
+        if (version == 1) {
+            Map<String, ObjectId> files = new HashMap<>();
+            BinaryFormat.readPathTable(in, files);
+            commit.fileToContent = FileMap.of(files);
+        }
+        else commit.fileToContent = FileMap.load(BinaryFormat.readId(in));
+        return commit;
+    }
+
+    /**
+     * Return the first parent, loading it through the session the first time it's asked for
+     */
+    public Commit getParent() {
+        if (parent == null && parentID != null) parent = Session.current().commit(parentID);
+        return parent;
+    }
+
+    /**
+     * Return the merged-in parent of a merge commit, or null for an ordinary commit
+     */
+    public Commit getSecondParent() {
+        if (secondParent == null && secondParentID != null) secondParent = Session.current().commit(secondParentID);
+        return secondParent;
     }
 
     /**
      * test if given file is in last commit, return true if it's not
      * If so, test if the content is modified, return true if it is
      */
-    public boolean isFileModified(String fileName, String SHA) {
+    public boolean isFileModified(String fileName, ObjectId SHA) {
         if (!fileToContent.containsKey(fileName)) return true;
         return !fileToContent.get(fileName).equals(SHA);
     }
@@ -107,7 +202,7 @@ public class Commit implements Serializable {
      * Check if the given file is tracked
      */
     public boolean containsFile(String fileName) {
-        return fileToCommit.containsKey(fileName);
+        return fileToContent.containsKey(fileName);
     }
 
     @Override
@@ -115,28 +210,22 @@ public class Commit implements Serializable {
         if (object == null) return false;
         if (object.getClass() != Commit.class) return false;
         Commit commit = (Commit) object;
-        if (this.getSHAHash().equals(commit.getSHAHash())) return true;
+        if (this.getID().equals(commit.getID())) return true;
         else return false;
     }
 
     @Override
     public int hashCode() {
-        String SHA = getSHAHash();
-        return SHA.charAt(0) + SHA.charAt(1);
+        return getID().hashCode();
     }
 
     /**
      * Return SHA of the given file's content
      */
-    public String getFileContent(String fileName) {
+    public ObjectId getFileContent(String fileName) {
         return fileToContent.get(fileName);
     }
 
-    /**
-     * Return SHA of the commit, whose backup repository is where the given file is stored
-     */
-    public String getCommitSHAOfFile(String fileName) {return fileToCommit.get(fileName);}
-
     @Override
     public String toString() {
         return getSHAHash();
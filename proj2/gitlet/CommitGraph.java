@@ -0,0 +1,279 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Repository.COMMIT_GRAPH;
+import static gitlet.Repository.COMMIT_INDEX;
+
+/** The shape of history, kept apart from the commits themselves so that walking it never
+ *  deserializes a commit. Each commit has a fixed-width record in .gitlet/commit-graph,
+ *  and refers to its parents by record position, so following a parent is an array access.
+ *
+ *  .gitlet/commit-graph: "CGPH", version, then one record per commit:
+ *      id (20 bytes), position of the first parent (4 bytes), position of the second parent (4 bytes),
+ *      generation (4 bytes), commit time in milliseconds (8 bytes)
+ *  Positions are -1 for a missing parent. A commit is appended when it's written, after its
+ *  parents, so records are in topological order. The generation of a root commit is 1, and that
+ *  of any other commit is 1 + the largest generation of its parents; an ancestor of a commit always
+ *  has a smaller generation, which lets walks stop at commits too old to matter.
+ *
+ *  A commit's record is found by its id through the commit index (see CommitIndex), which holds
+ *  the position of each record but those appended since it was last written; those few are
+ *  searched newest first, as the commits asked about are mostly branch heads and new parents.
+ *
+ *  The file only caches what the commits say: if it's missing, or doesn't know a commit asked
+ *  about (e.g. one written by an older gitlet), it's rebuilt from the object store.
+ */
+class CommitGraph {
+    static final int VERSION = 1;
+    /** Position of a parent that doesn't exist */
+    static final int NONE = -1;
+    private static final int MAGIC = 0x43475048; // "CGPH"
+    private static final int HEADER_SIZE = 8;
+    private static final int ID_LENGTH = 20;
+    private static final int RECORD_SIZE = ID_LENGTH + 4 + 4 + 4 + 8;
+
+    /** The records, mapped read-only */
+    private final MappedByteBuffer records;
+    private final int count;
+    /** Positions of the records by id, read on the first lookup */
+    private CommitIndex index;
+
+    private CommitGraph(MappedByteBuffer records) {
+        this.records = records;
+        this.count = (records.capacity() - HEADER_SIZE) / RECORD_SIZE;
+    }
+
+    /**
+     * Return the commit-graph of the repository in CWD, or null if there's none or it's unreadable
+     */
+    private static CommitGraph read() throws IOException {
+        if (!COMMIT_GRAPH.exists()) return null;
+        try (FileChannel channel = FileChannel.open(COMMIT_GRAPH.toPath())) {
+            if (channel.size() < HEADER_SIZE) return null;
+            MappedByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (records.getInt(0) != MAGIC || records.getInt(4) != VERSION) return null;
+            return new CommitGraph(records);
+        }
+    }
+
+    /**
+     * Return a commit-graph that has a record for each of the given commit ids,
+     * rebuilding it from the object store if the one on disk doesn't
+     */
+    static CommitGraph covering(ObjectId... ids) {
+        try {
+            CommitGraph graph = read();
+            if (graph != null && graph.containsAll(ids)) return graph;
+            rebuild();
+            return read();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private boolean containsAll(ObjectId... ids) {
+        for (ObjectId id: ids)
+            if (indexOf(id) == NONE) return false;
+        return true;
+    }
+
+    /**
+     * Append the record of a commit just written to the object store, whose id is ID
+     */
+    static void add(ObjectId id, Commit commit) throws IOException {
+        CommitGraph graph = read();
+        if (graph == null) {
+            rebuild();
+            return;
+        }
+        int parent = commit.parentID == null ? NONE : graph.indexOf(commit.parentID);
+        int secondParent = commit.secondParentID == null ? NONE : graph.indexOf(commit.secondParentID);
+        if ((commit.parentID != null && parent == NONE) || (commit.secondParentID != null && secondParent == NONE)) {
+            rebuild();
+            return;
+        }
+        int generation = 1 + Math.max(graph.generationAt(parent), graph.generationAt(secondParent));
+
+        try (RandomAccessFile file = new RandomAccessFile(COMMIT_GRAPH, "rw")) {
+            // drop what's left of a record whose append was interrupted, so the new one stays aligned
+            file.setLength(HEADER_SIZE + (long) graph.count * RECORD_SIZE);
+            file.seek(file.length());
+            file.write(record(id, parent, secondParent, generation, commit.time.getTime()));
+        }
+    }
+
+    /**
+     * Write the commit-graph of every commit in the object store, replacing the one on disk
+     */
+    static void rebuild() throws IOException {
+        Map<ObjectId, Commit> commits = new HashMap<>();
+        for (ObjectId id: ObjectStore.ids(ObjectStore.COMMIT)) commits.put(id, Commit.load(id));
+
+        // order parents before children, with an explicit stack since histories can be deep
+        Map<ObjectId, Integer> positions = new HashMap<>();
+        List<ObjectId> order = new ArrayList<>();
+        for (ObjectId root: commits.keySet()) {
+            Deque<ObjectId> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                ObjectId id = stack.peek();
+                if (positions.containsKey(id)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit commit = commits.get(id);
+                boolean parentsDone = true;
+                for (ObjectId parentID: new ObjectId[]{commit.parentID, commit.secondParentID}) {
+                    if (parentID != null && !positions.containsKey(parentID) && commits.containsKey(parentID)) {
+                        stack.push(parentID);
+                        parentsDone = false;
+                    }
+                }
+                if (!parentsDone) continue;
+                stack.pop();
+                positions.put(id, order.size());
+                order.add(id);
+            }
+        }
+
+        File temp = Utils.join(COMMIT_GRAPH.getParentFile(), COMMIT_GRAPH.getName() + ".tmp");
+        int[] generations = new int[order.size()];
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < order.size(); ++i) {
+                Commit commit = commits.get(order.get(i));
+                int parent = positions.getOrDefault(commit.parentID, NONE);
+                int secondParent = positions.getOrDefault(commit.secondParentID, NONE);
+                generations[i] = 1 + Math.max(parent == NONE ? 0 : generations[parent],
+                        secondParent == NONE ? 0 : generations[secondParent]);
+                out.write(record(order.get(i), parent, secondParent, generations[i], commit.time.getTime()));
+            }
+        }
+        // the commit index holds the ids of the first records, which may be other commits in the new graph
+        COMMIT_INDEX.delete();
+        Files.move(temp.toPath(), COMMIT_GRAPH.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] record(ObjectId id, int parent, int secondParent, int generation, long time) {
+        return id.writeTo(ByteBuffer.allocate(RECORD_SIZE)).putInt(parent).putInt(secondParent)
+                .putInt(generation).putLong(time).array();
+    }
+
+    // Reading records //////////////////////////////////////////////////////////
+
+    int size() {
+        return count;
+    }
+
+    private int recordPosition(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Return the position of the commit with the given id, or NONE. Searches the records the commit
+     * index doesn't hold yet from the newest, then the commit index
+     */
+    int indexOf(ObjectId id) {
+        if (index == null) index = CommitIndex.of(this, CommitIndex.TAIL_LIMIT);
+        for (int position = count - 1; position >= index.indexed(); --position)
+            if (id.compareTo(records, recordPosition(position)) == 0) return position;
+        return index.positionOf(id);
+    }
+
+    ObjectId idAt(int index) {
+        return ObjectId.read(records, recordPosition(index));
+    }
+
+    int parentAt(int index) {
+        return records.getInt(recordPosition(index) + ID_LENGTH);
+    }
+
+    int secondParentAt(int index) {
+        return records.getInt(recordPosition(index) + ID_LENGTH + 4);
+    }
+
+    /** Return the generation of the commit at INDEX, or 0 for NONE */
+    int generationAt(int index) {
+        return index == NONE ? 0 : records.getInt(recordPosition(index) + ID_LENGTH + 8);
+    }
+
+    long timeAt(int index) {
+        return records.getLong(recordPosition(index) + ID_LENGTH + 12);
+    }
+
+    // Walks ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return true if the commit at ANCESTOR is the commit at DESCENDANT or one of its ancestors.
+     * Commits whose generation isn't above that of ANCESTOR can't lead to it, so they're not explored
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        if (ancestor == descendant) return true;
+        int cutoff = generationAt(ancestor);
+        boolean[] visited = new boolean[count];
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(descendant);
+        while (!stack.isEmpty()) {
+            int index = stack.pop();
+            for (int parent: new int[]{parentAt(index), secondParentAt(index)}) {
+                if (parent == ancestor) return true;
+                if (parent == NONE || visited[parent] || generationAt(parent) <= cutoff) continue;
+                visited[parent] = true;
+                stack.push(parent);
+            }
+        }
+        return false;
+    }
+
+    private static final byte FROM_A = 1, FROM_B = 2, DONE = 4;
+
+    /**
+     * Return the position of a latest common ancestor of the commits at A and B, or NONE if they
+     * have none. Ancestors are visited from the highest generation down, marking which of A and B
+     * reach them, newer commits first among those of the same generation. Every descendant of a
+     * commit is visited before it, so the first commit reached from both is a common ancestor no
+     * other common ancestor descends from.
+     */
+    int mergeBase(int a, int b) {
+        byte[] flags = new byte[count];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> generationAt(x) != generationAt(y)
+                ? Integer.compare(generationAt(y), generationAt(x)) : Long.compare(timeAt(y), timeAt(x)));
+        flags[a] |= FROM_A;
+        flags[b] |= FROM_B;
+        queue.add(a);
+        queue.add(b);
+        while (!queue.isEmpty()) {
+            int index = queue.poll();
+            if ((flags[index] & DONE) != 0) continue;
+            flags[index] |= DONE;
+            int reachedFrom = flags[index] & (FROM_A | FROM_B);
+            if (reachedFrom == (FROM_A | FROM_B)) return index;
+            for (int parent: new int[]{parentAt(index), secondParentAt(index)}) {
+                if (parent == NONE || (flags[parent] & reachedFrom) == reachedFrom) continue;
+                flags[parent] |= reachedFrom;
+                queue.add(parent);
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,222 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static gitlet.Repository.COMMIT_INDEX;
+
+/** The ids of all commits in sorted order, so an abbreviated id is resolved by binary search
+ *  rather than by listing the object store and comparing every name with it, and the commit-graph
+ *  finds the record of a commit by its id without reading every record.
+ *
+ *  .gitlet/commit-index: "CIDX", version, id count, fan-out table, then an entry per id in sorted
+ *  order: the id (20 bytes) and the position of its record in the commit-graph (4 bytes).
+ *  Entry i of the fan-out table is the number of ids whose first byte is at most i.
+ *
+ *  The index is derived from the commit-graph, which gets a record for every commit written. It
+ *  holds the ids of the graph's first records; the ones appended since, its tail, are searched in
+ *  the graph itself. Once the tail is longer than TAIL_LIMIT it's sorted and merged into the index,
+ *  so a new commit costs a search of at most TAIL_LIMIT ids, and rewriting the index is paid once
+ *  every TAIL_LIMIT commits rather than on every lookup. The commit-graph deletes the index when
+ *  it's rebuilt, since its records may then be in another order.
+ */
+class CommitIndex {
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x43494458; // "CIDX"
+    private static final int ENTRY_SIZE = ObjectId.LENGTH + 4;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int HEADER_SIZE = 12 + FANOUT_SIZE;
+    /** Most commits of the graph searched there, rather than in the index, before they're merged into it */
+    static final int TAIL_LIMIT = 1024;
+
+    /** The whole file, mapped read-only */
+    private final MappedByteBuffer index;
+    /** Number of ids in the index, which are those of the first records of the graph */
+    private final int count;
+    /** The commit-graph, whose records from position count on are the tail */
+    private final CommitGraph graph;
+
+    private CommitIndex(MappedByteBuffer index, CommitGraph graph) {
+        this.index = index;
+        this.count = index.getInt(8);
+        this.graph = graph;
+    }
+
+    /**
+     * Return the commit index of the repository in CWD, merging the tail into it first if it's
+     * grown past TAIL_LIMIT, and writing it from scratch if it's missing or unreadable
+     */
+    static CommitIndex read() {
+        return read(TAIL_LIMIT);
+    }
+
+    /**
+     * Return the commit index of the repository in CWD, merging the tail into it first if it's
+     * longer than TAILLIMIT
+     */
+    static CommitIndex read(int tailLimit) {
+        return of(CommitGraph.covering(), tailLimit);
+    }
+
+    /**
+     * Return the index of the commits in GRAPH, merging the tail into it first if it's longer
+     * than TAILLIMIT
+     */
+    static CommitIndex of(CommitGraph graph, int tailLimit) {
+        try {
+            CommitIndex index = open(graph);
+            if (index != null && graph.size() - index.count <= tailLimit) return index;
+            write(graph, index);
+            return open(graph);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the index on disk of the commits in GRAPH, or null if there's none, it's unreadable,
+     * or it holds more commits than GRAPH
+     */
+    private static CommitIndex open(CommitGraph graph) throws IOException {
+        if (!COMMIT_INDEX.exists()) return null;
+        try (FileChannel channel = FileChannel.open(COMMIT_INDEX.toPath())) {
+            if (channel.size() < HEADER_SIZE) return null;
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) return null;
+            if (channel.size() != HEADER_SIZE + (long) index.getInt(8) * ENTRY_SIZE) return null;
+            if (index.getInt(8) > graph.size()) return null;
+            return new CommitIndex(index, graph);
+        }
+    }
+
+    /**
+     * Write the index of the commits in GRAPH, replacing the one on disk: PREVIOUS, the index read
+     * from it, with its tail merged in, or, if PREVIOUS is null, an index of every commit
+     */
+    private static void write(CommitGraph graph, CommitIndex previous) throws IOException {
+        int from = previous == null ? 0 : previous.count;
+        ObjectId[] ids = new ObjectId[graph.size() - from];
+        Integer[] tail = new Integer[ids.length];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = graph.idAt(from + i);
+            tail[i] = from + i;
+        }
+        // positions of the tail's records, in the order of their ids
+        Arrays.sort(tail, Comparator.comparing(position -> ids[position - from]));
+        int[] fanout = new int[256];
+        for (ObjectId id: ids) fanout[id.firstByte()] += 1;
+        for (int i = 0; i < fanout.length; ++i) {
+            if (previous != null) fanout[i] += previous.fanout(i) - (i == 0 ? 0 : previous.fanout(i - 1));
+            if (i > 0) fanout[i] += fanout[i - 1];
+        }
+
+        File temp = Utils.join(COMMIT_INDEX.getParentFile(), COMMIT_INDEX.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(from + tail.length);
+            for (int entry: fanout) out.writeInt(entry);
+            // the ids already indexed are sorted, so the tail is merged into them in one pass
+            int i = 0, j = 0;
+            while (i < from || j < tail.length) {
+                if (j == tail.length || i < from && ids[tail[j] - from].compareTo(previous.index, previous.idPosition(i)) > 0) {
+                    out.write(ObjectId.read(previous.index, previous.idPosition(i)).toBytes());
+                    out.writeInt(previous.positionAt(i++));
+                } else {
+                    out.write(ids[tail[j] - from].toBytes());
+                    out.writeInt(tail[j++]);
+                }
+            }
+        }
+        Files.move(temp.toPath(), COMMIT_INDEX.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Return entry I of the fan-out table: the number of ids indexed whose first byte is at most I */
+    private int fanout(int i) {
+        return index.getInt(12 + i * 4);
+    }
+
+    /** Number of commits, in the index and in the tail */
+    int size() {
+        return graph.size();
+    }
+
+    /** Number of commits in the index, which are those of the first records of the graph */
+    int indexed() {
+        return count;
+    }
+
+    private int idPosition(int i) {
+        return HEADER_SIZE + i * ENTRY_SIZE;
+    }
+
+    private int positionAt(int i) {
+        return index.getInt(idPosition(i) + ObjectId.LENGTH);
+    }
+
+    /**
+     * Return the position in the commit-graph of the commit with the given id if it's in the index,
+     * found by binary search among the ids sharing its first byte, or CommitGraph.NONE
+     */
+    int positionOf(ObjectId id) {
+        int low = id.firstByte() == 0 ? 0 : fanout(id.firstByte() - 1), high = fanout(id.firstByte());
+        while (low < high) {
+            int middle = (low + high) >>> 1, comparison = id.compareTo(index, idPosition(middle));
+            if (comparison == 0) return positionAt(middle);
+            if (comparison > 0) low = middle + 1;
+            else high = middle;
+        }
+        return CommitGraph.NONE;
+    }
+
+    /**
+     * Return the ids of the commits whose hex form starts with PREFIX, in sorted order. In the
+     * index, the first one is found by binary search among the ids sharing its first byte, and the
+     * matches follow it; the tail is searched one id at a time
+     */
+    List<ObjectId> idsWithPrefix(String prefix) {
+        List<ObjectId> ids = new ArrayList<>();
+        if (prefix.length() > 2 * ObjectId.LENGTH || !prefix.matches("[0-9a-f]*")) return ids;
+        int low = 0, high = count;
+        if (prefix.length() >= 2) {
+            int firstByte = Integer.parseInt(prefix.substring(0, 2), 16);
+            low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+            high = fanout(firstByte);
+        }
+
+        // the smallest id with the prefix is the prefix padded with zeros
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < 2 * ObjectId.LENGTH) padded.append('0');
+        ObjectId smallest = ObjectId.fromHex(padded.toString());
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (smallest.compareTo(index, idPosition(middle)) > 0) low = middle + 1;
+            else high = middle;
+        }
+        for (int i = low; i < count; ++i) {
+            ObjectId id = ObjectId.read(index, idPosition(i));
+            if (!id.startsWith(prefix)) break;
+            ids.add(id);
+        }
+        boolean inTail = false;
+        for (int i = count; i < graph.size(); ++i) {
+            ObjectId id = graph.idAt(i);
+            if (id.startsWith(prefix)) inTail = ids.add(id);
+        }
+        if (inTail) Collections.sort(ids);
+        return ids;
+    }
+}
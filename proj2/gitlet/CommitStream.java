@@ -0,0 +1,100 @@
+package gitlet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Every commit in the object store, in id order, loaded as it's asked for.
+ *  Commits are read one shard at a time, a shard being the commits whose ids share their first
+ *  byte (the fan-out directory of a loose commit), so only the shards being read are in memory,
+ *  never the whole history, and the first commit is available as soon as its shard is read.
+ *
+ *  In parallel mode up to SHARDS_IN_FLIGHT shards are read and deserialized ahead on a pool of
+ *  threads, and are handed out in shard order, so the commits come in the same order either way.
+ */
+class CommitStream implements Iterator<Commit> {
+    /** Most shards read ahead in parallel mode */
+    static final int SHARDS_IN_FLIGHT = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int SHARDS = 256;
+
+    /** Threads reading shards, started by the first parallel stream */
+    private static ExecutorService pool;
+
+    private final boolean parallel;
+    /** Next shard to read or submit */
+    private int nextShard;
+    /** Shards submitted, in shard order; unused when not parallel */
+    private final Deque<Future<List<Commit>>> inFlight = new ArrayDeque<>();
+    /** Commits of the current shard not handed out yet */
+    private Iterator<Commit> current = Collections.emptyIterator();
+
+    CommitStream(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(SHARDS_IN_FLIGHT, task -> {
+                Thread thread = new Thread(task, "gitlet-load");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Return the commits whose ids start with the byte SHARD, in id order
+     */
+    private static List<Commit> readShard(int shard) {
+        List<Commit> commits = new ArrayList<>();
+        for (ObjectId id: ObjectStore.idsWithPrefix(ObjectStore.COMMIT, String.format("%02x", shard)))
+            commits.add(Commit.load(id));
+        return commits;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (parallel) {
+                while (nextShard < SHARDS && inFlight.size() < SHARDS_IN_FLIGHT) {
+                    int shard = nextShard++;
+                    inFlight.add(pool().submit((Callable<List<Commit>>) () -> readShard(shard)));
+                }
+                if (inFlight.isEmpty()) return false;
+                current = take(inFlight.poll()).iterator();
+            } else {
+                if (nextShard == SHARDS) return false;
+                current = readShard(nextShard++).iterator();
+            }
+        }
+        return true;
+    }
+
+    private List<Commit> take(Future<List<Commit>> shard) {
+        try {
+            return shard.get();
+        } catch (InterruptedException | ExecutionException excp) {
+            for (Future<List<Commit>> other: inFlight) other.cancel(true);
+            inFlight.clear();
+            nextShard = SHARDS;
+            Throwable cause = excp.getCause() != null ? excp.getCause() : excp;
+            throw new IllegalArgumentException(cause.getMessage());
+        }
+    }
+
+    @Override
+    public Commit next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return current.next();
+    }
+}
@@ -1,38 +1,123 @@
 package gitlet;
 
-import java.io.Serializable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
-public class CommitTree implements Serializable {
-    Commit head;
+import static gitlet.Repository.COMMIT_TREE;
+
+/** The branches and which of them is checked out, stored in .gitlet/commit_tree in a binary
+ *  encoding (see BinaryFormat):
+ *      "GCTR", version (1 byte), id of the head commit, name of the current branch (string),
+ *      branches and the ids of the commits they point to (path table)
+ *  The commit tree the original gitlet wrote with Java serialization is rewritten when its
+ *  repository is upgraded (see LegacyRepository); reading one otherwise fails with
+ *  Repository.UNSUPPORTED_FORMAT.
+ */
+public class CommitTree {
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x47435452; // "GCTR"
+
+    ObjectId headID;
     String currentBranchName;
-    Map<String, Commit> branches; // store mapping of a branch's name to the commit it points to
+    Map<String, ObjectId> branches; // store mapping of a branch's name to the id of the commit it points to
+
+    /** Head commit loaded on demand, never encoded */
+    private Commit head;
+
     public CommitTree(Commit initialCommit) {
         this.head = initialCommit;
+        this.headID = initialCommit.getID();
         this.currentBranchName = "master";
         branches = new HashMap<>();
-        branches.put("master", initialCommit);
+        branches.put("master", headID);
+    }
+    private CommitTree() {
+        branches = new HashMap<>();
+    }
+
+    /**
+     * Return the commit tree of the repository in CWD
+     */
+    static CommitTree read() {
+        byte[] bytes = Utils.readContents(COMMIT_TREE);
+        if (BinaryFormat.isSerialized(bytes)) Repository.unsupportedFormat();
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+        if (in.getInt() != MAGIC || in.get() != VERSION)
+            throw Utils.error("Bad commit tree %s", COMMIT_TREE.getPath());
+        CommitTree commitTree = new CommitTree();
+        commitTree.headID = BinaryFormat.readId(in);
+        commitTree.currentBranchName = BinaryFormat.readString(in);
+        BinaryFormat.readPathTable(in, commitTree.branches);
+        return commitTree;
+    }
+
+    /**
+     * Write this commit tree to .gitlet/commit_tree, replacing it in one step
+     */
+    void write() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            BinaryFormat.writeId(out, headID);
+            BinaryFormat.writeString(out, currentBranchName);
+            BinaryFormat.writePathTable(out, new TreeMap<>(branches));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        File temp = Utils.join(COMMIT_TREE.getParentFile(), COMMIT_TREE.getName() + ".tmp");
+        Utils.writeContents(temp, (Object) bytes.toByteArray());
+        try {
+            Files.move(temp.toPath(), COMMIT_TREE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    public Commit getHead() {
+        if (head == null) head = Session.current().commit(headID);
+        return head;
     }
     public void updateHead(Commit newHead) {
         this.head = newHead;
-        branches.put(currentBranchName, newHead);
+        this.headID = newHead.getID();
+        branches.put(currentBranchName, headID);
     }
     public boolean hasBranch(String branchName) {
         return branches.containsKey(branchName);
     }
     public void addBranch(String branchName, Commit commit) {
-        branches.put(branchName, commit);
+        branches.put(branchName, commit.getID());
     }
     public void removeBranch(String branchName) {
         branches.remove(branchName);
     }
-    public Commit getCommitOfBranch(String branchName) {
+
+    /**
+     * Return id of the commit the given branch points to, or null if there's no such branch
+     */
+    public ObjectId getCommitIDOfBranch(String branchName) {
         return branches.get(branchName);
     }
+    public Commit getCommitOfBranch(String branchName) {
+        ObjectId commitID = branches.get(branchName);
+        if (commitID == null) return null;
+        if (commitID.equals(headID)) return getHead();
+        return Session.current().commit(commitID);
+    }
     public void updateBranch(String branchName) {
         currentBranchName = branchName;
-        head = branches.get(currentBranchName);
+        headID = branches.get(currentBranchName);
+        head = null;
     }
     public boolean isCurrentBranch(String branchName) {
         return currentBranchName.equals(branchName);
@@ -42,7 +127,8 @@ public class CommitTree implements Serializable {
      * Called in reset
      */
     public void resetBranch(Commit commit) {
-        branches.put(currentBranchName, commit);
+        headID = commit.getID();
+        branches.put(currentBranchName, headID);
         head = commit;
     }
 }
@@ -0,0 +1,125 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Repository.*;
+
+/** Measures what compressing objects saves when reading them back.
+ *  Builds the same history of source-like text files twice in the current directory, once in
+ *  format 0 (objects stored as they are) and once in format 1 (objects compressed with zlib),
+ *  and for each reports the bytes of objects read and the time taken by global-log and by checking
+ *  out every file of every commit, with loose objects and again after gc.
+ *
+ *  The bytes read are what a cold cache on network storage would have to fetch; the times are
+ *  measured with a warm cache, so they show the cost of decompressing rather than the I/O saved.
+ *
+ *  Usage, from an empty scratch directory: java gitlet.CompressionSpeedTest [COMMITS] [FILES]
+ */
+public class CompressionSpeedTest {
+    public static void main(String[] args) throws IOException {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run this from an empty scratch directory.");
+            return;
+        }
+
+        System.out.printf("%d commits of %d files%n", commits, files);
+        System.out.printf("%-7s %-7s %12s %12s %10s %12s %10s%n", "format", "objects",
+                "bytes stored", "global-log", "ms", "checkout", "ms");
+        for (int format = 0; format <= 1; ++format) {
+            List<ObjectId> commitIDs = buildHistory(format, commits, files);
+            report(format, "loose", commitIDs, files);
+            Commands.gc(new String[]{"gc"});
+            report(format, "packed", commitIDs, files);
+            clean(files);
+        }
+    }
+
+    /**
+     * Make a repository of the given format in CWD, and commit changes to a few of the files
+     * COMMITS times; return ids of the commits, oldest first
+     */
+    private static List<ObjectId> buildHistory(int format, int commits, int files) throws IOException {
+        System.setProperty("gitlet.format", String.valueOf(format));
+        Commands.init(new String[]{"init"});
+        Random random = new Random(61);
+        List<StringBuilder> contents = new ArrayList<>();
+        for (int i = 0; i < files; ++i) {
+            StringBuilder content = new StringBuilder();
+            for (int line = 0; line < 200; ++line) content.append(sourceLine(random));
+            contents.add(content);
+        }
+
+        List<ObjectId> commitIDs = new ArrayList<>();
+        for (int c = 0; c < commits; ++c) {
+            for (int i = 0; i < files; ++i) {
+                if (c > 0 && i != c % files && random.nextInt(10) != 0) continue;
+                StringBuilder content = contents.get(i);
+                int at = random.nextInt(content.length());
+                content.insert(content.indexOf("\n", at) + 1, sourceLine(random));
+                Utils.writeContents(fileName(i), content.toString());
+                Commands.add(new String[]{"add", fileName(i).getName()});
+            }
+            Commands.commit(new String[]{"commit", "commit " + c});
+            commitIDs.add(CommitTree.read().headID);
+        }
+        return commitIDs;
+    }
+
+    private static void report(int format, String objects, List<ObjectId> commitIDs, int files) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ObjectStore.reload();
+        ObjectStore.storedBytesRead.set(0);
+        long start = System.nanoTime();
+        Commands.globalLog(new String[]{"global-log"});
+        double logTime = (System.nanoTime() - start) / 1e6;
+        long logBytes = ObjectStore.storedBytesRead.get();
+
+        ObjectStore.reload();
+        ObjectStore.storedBytesRead.set(0);
+        start = System.nanoTime();
+        for (ObjectId commitID: commitIDs)
+            for (int i = 0; i < files; ++i)
+                Commands.checkout(new String[]{"checkout", commitID.toString(), "--", fileName(i).getName()});
+        double checkoutTime = (System.nanoTime() - start) / 1e6;
+        long checkoutBytes = ObjectStore.storedBytesRead.get();
+        System.setOut(out);
+
+        System.out.printf("%-7d %-7s %12d %12d %10.1f %12d %10.1f%n", format, objects,
+                sizeOf(OBJECTS_DIR) + sizeOf(BLOBS_DIR) + sizeOf(PACK_DIR),
+                logBytes, logTime, checkoutBytes, checkoutTime);
+    }
+
+    private static String sourceLine(Random random) {
+        String[] words = {"int", "count", "=", "0;", "for", "(String", "name:", "names)", "return",
+            "result;", "if", "(file.exists())", "stage.addFile(name,", "SHA);", "}", "{", "commit"};
+        StringBuilder line = new StringBuilder("        ");
+        for (int i = 2 + random.nextInt(6); i > 0; --i) line.append(words[random.nextInt(words.length)]).append(' ');
+        return line.append('\n').toString();
+    }
+
+    private static File fileName(int i) {
+        return Utils.join(CWD, "file" + i + ".java");
+    }
+
+    private static long sizeOf(File file) {
+        if (!file.exists()) return 0;
+        if (file.isFile()) return file.length();
+        long size = 0;
+        for (File child: file.listFiles()) size += sizeOf(child);
+        return size;
+    }
+
+    private static void clean(int files) {
+        Utils.deleteDirectory(GITLET_DIR);
+        for (int i = 0; i < files; ++i) fileName(i).delete();
+    }
+}
@@ -0,0 +1,135 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import static gitlet.Repository.CWD;
+
+/** A gitlet that keeps running, and runs the commands sent by Client to the repository in its
+ *  working directory, so they don't each pay for starting a JVM, loading gitlet and filling the
+ *  commit cache of the Session.
+ *
+ *  Commands are run one at a time, through Main.run as they would be from the command line, with
+ *  System.out and System.err sent back to the client; Session.end leaves nothing of a command's
+ *  staging area or commit tree in memory, so the next command sees what other processes wrote.
+ *
+ *  java gitlet.Main daemon        serve the current directory until stopped
+ *  java gitlet.Main daemon stop   stop the daemon serving the current directory
+ */
+class Daemon {
+    /**
+     * Execute daemon command
+     */
+    static void command(String[] args) throws IOException {
+        if (args.length == 1) serve();
+        else if (args.length == 2 && args[1].equals("stop")) {
+            if (Client.forward(args) == Client.NO_DAEMON)
+                GitletException.handleException("No gitlet daemon is running in this directory.");
+        }
+        else GitletException.handleException("Incorrect operands.");
+    }
+
+    private static void serve() throws IOException {
+        SocketChannel running = Client.connect(CWD);
+        if (running != null) {
+            running.close();
+            GitletException.handleException("A gitlet daemon is already running in this directory.");
+        }
+        File socket = Client.socketFile(CWD);
+        socket.delete(); // left behind by a daemon that was killed
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            socket.deleteOnExit();
+            System.out.println("Serving " + CWD + " on " + socket);
+            boolean serving = true;
+            while (serving) {
+                try (SocketChannel client = server.accept()) {
+                    serving = handle(client);
+                } catch (IOException excp) {
+                    // the client went away; its command, if any, ran to the end
+                }
+            }
+        } finally {
+            socket.delete();
+        }
+    }
+
+    /**
+     * Run the command sent by CLIENT and send back its output and exit code.
+     * Return false if the command was to stop the daemon
+     */
+    private static boolean handle(SocketChannel client) throws IOException {
+        DataInputStream request = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        String[] args = new String[request.readInt()];
+        for (int i = 0; i < args.length; ++i) args[i] = request.readUTF();
+        DataOutputStream reply = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+        boolean stop = args.length == 2 && args[0].equals("daemon") && args[1].equals("stop");
+
+        PrintStream out = System.out, err = System.err;
+        PrintStream clientOut = new PrintStream(new BufferedOutputStream(new Frames(reply, Client.OUT)));
+        PrintStream clientErr = new PrintStream(new BufferedOutputStream(new Frames(reply, Client.ERR)));
+        int exitCode = 0;
+        System.setOut(clientOut);
+        System.setErr(clientErr);
+        try {
+            if (args.length > 0 && args[0].equals("daemon")) {
+                if (!stop) System.out.println("A gitlet daemon is already running in this directory.");
+            } else if (args.length == 1 && args[0].equals("batch")) {
+                // the client's standard input isn't sent
+                System.out.println("A batch run by the gitlet daemon must be given a file.");
+            } else {
+                // another process may have run gc since the last command, replacing the packs
+                ObjectStore.reload();
+                Main.run(args);
+            }
+        } catch (RuntimeException excp) {
+            Session.current().discard();
+            excp.printStackTrace();
+            exitCode = 1;
+        } finally {
+            clientOut.flush();
+            clientErr.flush();
+            System.setOut(out);
+            System.setErr(err);
+        }
+        reply.writeByte(Client.EXIT);
+        reply.writeInt(exitCode);
+        reply.flush();
+        return !stop;
+    }
+
+    /** Output sent to the client as frames of the given kind */
+    private static class Frames extends OutputStream {
+        private final DataOutputStream reply;
+        private final byte kind;
+
+        Frames(DataOutputStream reply, byte kind) {
+            this.reply = reply;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            reply.writeByte(kind);
+            reply.writeInt(length);
+            reply.write(bytes, offset, length);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Binary deltas: a description of one byte array as pieces copied from another (the base)
+ *  plus the bytes that appear nowhere in the base. Used by gc to store a version of a file
+ *  as the few lines that changed since a similar version.
+ *
+ *  Format: base length, result length, then a sequence of instructions, each either
+ *  COPY offset length (take bytes of the base) or INSERT length bytes (take the bytes that follow).
+ *  All numbers are varints.
+ */
+class Delta {
+    private static final int COPY = 1;
+    private static final int INSERT = 2;
+
+    /** Length of the blocks of the base that are indexed, and the shortest copy worth emitting */
+    private static final int BLOCK = 16;
+    /** Multiplier of the rolling hash */
+    private static final int PRIME = 0x01000193;
+    /** PRIME to the power BLOCK - 1, to drop the leaving byte from the rolling hash */
+    private static final int LEADING_POWER;
+
+    static {
+        int power = 1;
+        for (int i = 1; i < BLOCK; ++i) power *= PRIME;
+        LEADING_POWER = power;
+    }
+
+    /**
+     * Return a delta that turns BASE into TARGET
+     */
+    static byte[] create(byte[] base, byte[] target) {
+        try {
+            return write(base, target);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static byte[] write(byte[] base, byte[] target) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        BinaryFormat.writeVarint(delta, base.length);
+        BinaryFormat.writeVarint(delta, target.length);
+
+        int[] table = indexBlocks(base);
+        int mask = table.length - 1;
+        int literalStart = 0, position = 0;
+        int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (position + BLOCK <= target.length) {
+            int candidate = table[mix(hash) & mask] - 1;
+            int length = candidate >= 0 ? matchLength(base, candidate, target, position) : 0;
+            if (length < BLOCK) {
+                if (position + BLOCK < target.length) hash = roll(hash, target[position], target[position + BLOCK]);
+                position += 1;
+                continue;
+            }
+            // grow the match backwards over bytes that would otherwise be inserted
+            while (candidate > 0 && position > literalStart && base[candidate - 1] == target[position - 1]) {
+                candidate -= 1;
+                position -= 1;
+                length += 1;
+            }
+            writeInsert(delta, target, literalStart, position);
+            delta.write(COPY);
+            BinaryFormat.writeVarint(delta, candidate);
+            BinaryFormat.writeVarint(delta, length);
+            position += length;
+            literalStart = position;
+            if (position + BLOCK <= target.length) hash = hash(target, position);
+        }
+        writeInsert(delta, target, literalStart, target.length);
+        return delta.toByteArray();
+    }
+
+    /**
+     * Return the result of applying DELTA, made by create, to BASE
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        ByteBuffer in = ByteBuffer.wrap(delta);
+        if (BinaryFormat.readVarint(in) != base.length) throw Utils.error("Delta does not apply to its base");
+        byte[] result = new byte[BinaryFormat.readVarint(in)];
+        int length = 0;
+        while (in.hasRemaining()) {
+            int instruction = in.get();
+            int offset = instruction == COPY ? BinaryFormat.readVarint(in) : 0;
+            int count = BinaryFormat.readVarint(in);
+            if (instruction == COPY) System.arraycopy(base, offset, result, length, count);
+            else in.get(result, length, count);
+            length += count;
+        }
+        if (length != result.length) throw Utils.error("Corrupt delta");
+        return result;
+    }
+
+    /**
+     * Return a hash table from the hash of each aligned block of BASE to 1 + its offset (0 is empty);
+     * later blocks overwrite earlier ones with the same hash
+     */
+    private static int[] indexBlocks(byte[] base) {
+        int blocks = base.length / BLOCK, size = 16;
+        while (size < 2 * blocks) size <<= 1;
+        int[] table = new int[size];
+        for (int offset = 0; offset + BLOCK <= base.length; offset += BLOCK)
+            table[mix(hash(base, offset)) & (size - 1)] = offset + 1;
+        return table;
+    }
+
+    private static int hash(byte[] bytes, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; ++i) hash = hash * PRIME + (bytes[i] & 0xff);
+        return hash;
+    }
+
+    private static int roll(int hash, byte leaving, byte entering) {
+        return (hash - (leaving & 0xff) * LEADING_POWER) * PRIME + (entering & 0xff);
+    }
+
+    /** Spread the bits of a rolling hash before it's used to pick a slot */
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 15) ^ (hash >>> 7);
+    }
+
+    private static int matchLength(byte[] base, int baseOffset, byte[] target, int targetOffset) {
+        int length = 0;
+        while (baseOffset + length < base.length && targetOffset + length < target.length
+                && base[baseOffset + length] == target[targetOffset + length]) length += 1;
+        return length;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream delta, byte[] target, int from, int to)
+            throws IOException {
+        if (from >= to) return;
+        delta.write(INSERT);
+        BinaryFormat.writeVarint(delta, to - from);
+        delta.write(target, from, to - from);
+    }
+
+    /**
+     * Return true if the bytes are a delta small enough, compared with the object it rebuilds,
+     * to be worth storing instead of the object
+     */
+    static boolean isWorthwhile(byte[] delta, byte[] target) {
+        return delta.length < target.length / 2;
+    }
+}
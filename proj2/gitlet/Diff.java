@@ -0,0 +1,331 @@
+package gitlet;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Differences between two sequences of lines, as the hunks where they differ.
+ *
+ *  Lines are compared as interned ints. A region of the two sides is first trimmed of the lines
+ *  they start and end with in common. A region of more than PATIENCE_THRESHOLD lines is then cut
+ *  at anchors: the longest sequence, in order on both sides, of lines that appear exactly once on
+ *  each side (the patience heuristic), and each stretch between anchors is compared on its own.
+ *  Smaller regions, and large ones without such lines, are split at the middle of a shortest edit
+ *  script found by Myers' O(ND) algorithm searching from both ends at once, which keeps two arrays
+ *  of O(N) ints whatever D is, and the halves are compared in turn. A search that would take more
+ *  than MAX_COST edits gives up and takes the whole region as one hunk, so a file compared with an
+ *  unrelated one costs O(N) rather than O(N^2).
+ *
+ *  Hunks are printed in the unified format, a few at a time as they're grouped, straight to the
+ *  stream they go to.
+ */
+class Diff {
+    /** Size of a region, in lines on both sides, from which it's cut at unique lines first */
+    static final int PATIENCE_THRESHOLD = 256;
+    /** Most edits a search looks through before taking its region as one hunk */
+    static final int MAX_COST = 1 << 12;
+
+    /** Lines [aStart, aEnd) of A replaced by lines [bStart, bEnd) of B */
+    static final class Hunk {
+        final int aStart, aEnd, bStart, bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + aStart + "," + aEnd + ") -> [" + bStart + "," + bEnd + ")";
+        }
+    }
+
+    /** Lines of unchanged content printed around each change */
+    static final int CONTEXT = 3;
+
+    private static final byte[] NO_NEWLINE = "\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    private final int[] a, b;
+    private final List<Hunk> hunks = new ArrayList<>();
+
+    private Diff(int[] a, int[] b) {
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Return the lines of CONTENT, each with the line feed that ends it, if any. Lines are
+     * decoded as ISO-8859-1, which maps each byte to one char, so any content splits, and
+     * line.getBytes(ISO_8859_1) gives its bytes back
+     */
+    static List<String> lines(byte[] content) {
+        List<String> lines = new ArrayList<>();
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        int start = 0;
+        for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+            lines.add(text.substring(start, end + 1));
+            start = end + 1;
+        }
+        if (start < text.length()) lines.add(text.substring(start));
+        return lines;
+    }
+
+    /**
+     * Return each of SIDES as ints, equal for equal lines across all of them
+     */
+    @SafeVarargs
+    static int[][] intern(List<String>... sides) {
+        Map<String, Integer> ids = new HashMap<>();
+        int[][] result = new int[sides.length][];
+        for (int s = 0; s < sides.length; ++s) {
+            result[s] = new int[sides[s].size()];
+            for (int i = 0; i < result[s].length; ++i) {
+                Integer id = ids.putIfAbsent(sides[s].get(i), ids.size());
+                result[s][i] = id == null ? ids.size() - 1 : id;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the hunks where the lines B differ from the lines A, in order
+     */
+    static List<Hunk> diff(List<String> a, List<String> b) {
+        int[][] sides = intern(a, b);
+        return diff(sides[0], sides[1]);
+    }
+
+    /**
+     * Return the hunks where B differs from A, in order
+     */
+    static List<Hunk> diff(int[] a, int[] b) {
+        Diff diff = new Diff(a, b);
+        diff.compare(0, a.length, 0, b.length);
+        return diff.hunks;
+    }
+
+    /** Return true if CONTENT has a NUL byte in its first 8000, as git tells binary files */
+    static boolean isBinary(byte[] content) {
+        for (int i = 0; i < Math.min(content.length, 8000); ++i)
+            if (content[i] == 0) return true;
+        return false;
+    }
+
+    /**
+     * Print HUNKS, the differences between the lines A and B, to OUT in the unified format, each
+     * group of hunks less than 2 * CONTEXT lines apart under one @@ header
+     */
+    static void printUnified(PrintStream out, List<String> a, List<String> b, List<Hunk> hunks) {
+        for (int first = 0, last; first < hunks.size(); first = last + 1) {
+            for (last = first; last + 1 < hunks.size(); ++last)
+                if (hunks.get(last + 1).aStart - hunks.get(last).aEnd > 2 * CONTEXT) break;
+            Hunk start = hunks.get(first), end = hunks.get(last);
+            int aFrom = Math.max(0, start.aStart - CONTEXT), aTo = Math.min(a.size(), end.aEnd + CONTEXT);
+            int bFrom = start.bStart - (start.aStart - aFrom), bTo = end.bEnd + (aTo - end.aEnd);
+            out.print("@@ -" + range(aFrom, aTo) + " +" + range(bFrom, bTo) + " @@\n");
+
+            int position = aFrom;
+            for (int h = first; h <= last; ++h) {
+                Hunk hunk = hunks.get(h);
+                printLines(out, ' ', a, position, hunk.aStart);
+                printLines(out, '-', a, hunk.aStart, hunk.aEnd);
+                printLines(out, '+', b, hunk.bStart, hunk.bEnd);
+                position = hunk.aEnd;
+            }
+            printLines(out, ' ', a, position, aTo);
+        }
+    }
+
+    /**
+     * Return lines [from, to) as a range of a unified hunk header: its first line counting from 1,
+     * or the line before it if it's empty, then the number of lines unless that's 1
+     */
+    private static String range(int from, int to) {
+        if (to - from == 1) return String.valueOf(from + 1);
+        return (to == from ? from : from + 1) + "," + (to - from);
+    }
+
+    /**
+     * Print lines [from, to) of LINES to OUT, each after PREFIX
+     */
+    private static void printLines(PrintStream out, char prefix, List<String> lines, int from, int to) {
+        for (int i = from; i < to; ++i) {
+            String line = lines.get(i);
+            out.write(prefix);
+            byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+            out.write(bytes, 0, bytes.length);
+            if (!line.endsWith("\n")) {
+                out.write('\n');
+                out.write(NO_NEWLINE, 0, NO_NEWLINE.length);
+            }
+        }
+    }
+
+    /**
+     * Add the hunks of lines [aLo, aHi) of A and [bLo, bHi) of B
+     */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            add(aLo, aHi, bLo, bHi);
+            return;
+        }
+        if (aHi - aLo + bHi - bLo > PATIENCE_THRESHOLD && cutAtUniqueLines(aLo, aHi, bLo, bHi)) return;
+
+        int[] split = bisect(aLo, aHi, bLo, bHi);
+        boolean atCorner = split == null || split[0] == aLo && split[1] == bLo || split[0] == aHi && split[1] == bHi;
+        if (atCorner) {
+            add(aLo, aHi, bLo, bHi);
+            return;
+        }
+        compare(aLo, split[0], bLo, split[1]);
+        compare(split[0], aHi, split[1], bHi);
+    }
+
+    /**
+     * Add a hunk, joining it to the one before if they touch
+     */
+    private void add(int aLo, int aHi, int bLo, int bHi) {
+        if (aLo == aHi && bLo == bHi) return;
+        if (!hunks.isEmpty()) {
+            Hunk last = hunks.get(hunks.size() - 1);
+            if (last.aEnd == aLo && last.bEnd == bLo) {
+                hunks.set(hunks.size() - 1, new Hunk(last.aStart, aHi, last.bStart, bHi));
+                return;
+            }
+        }
+        hunks.add(new Hunk(aLo, aHi, bLo, bHi));
+    }
+
+    /**
+     * Compare the region between the lines that appear once on each side of it, in the longest
+     * sequence of them that's in order on both sides, and return true; or return false, doing
+     * nothing, if there are no such lines
+     */
+    private boolean cutAtUniqueLines(int aLo, int aHi, int bLo, int bHi) {
+        // for each line: times in A, its position in A, times in B, its position in B
+        Map<Integer, int[]> occurrences = new HashMap<>();
+        for (int i = aLo; i < aHi; ++i) {
+            int[] occurrence = occurrences.computeIfAbsent(a[i], line -> new int[4]);
+            occurrence[0] += 1;
+            occurrence[1] = i;
+        }
+        for (int j = bLo; j < bHi; ++j) {
+            int[] occurrence = occurrences.get(b[j]);
+            if (occurrence == null) continue;
+            occurrence[2] += 1;
+            occurrence[3] = j;
+        }
+        List<int[]> unique = new ArrayList<>();
+        for (int i = aLo; i < aHi; ++i) {
+            int[] occurrence = occurrences.get(a[i]);
+            if (occurrence[0] == 1 && occurrence[2] == 1) unique.add(new int[]{i, occurrence[3]});
+        }
+        if (unique.isEmpty()) return false;
+
+        int anchorA = aLo, anchorB = bLo;
+        for (int[] anchor: longestIncreasing(unique)) {
+            compare(anchorA, anchor[0], anchorB, anchor[1]);
+            anchorA = anchor[0] + 1;
+            anchorB = anchor[1] + 1;
+        }
+        compare(anchorA, aHi, anchorB, bHi);
+        return true;
+    }
+
+    /**
+     * Return the longest subsequence of PAIRS, which are in increasing order of their first
+     * element, that's also increasing in their second, found by patience sorting
+     */
+    private static List<int[]> longestIncreasing(List<int[]> pairs) {
+        int[] tops = new int[pairs.size()], previous = new int[pairs.size()];
+        int piles = 0;
+        for (int i = 0; i < pairs.size(); ++i) {
+            int lo = 0, hi = piles;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (pairs.get(tops[mid])[1] < pairs.get(i)[1]) lo = mid + 1;
+                else hi = mid;
+            }
+            previous[i] = lo > 0 ? tops[lo - 1] : -1;
+            tops[lo] = i;
+            if (lo == piles) piles += 1;
+        }
+        List<int[]> result = new ArrayList<>();
+        for (int i = tops[piles - 1]; i >= 0; i = previous[i]) result.add(pairs.get(i));
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Return a point {x, y} on a shortest edit script of lines [aLo, aHi) of A into [bLo, bHi)
+     * of B, found where the searches from its two ends meet, or null if that takes more than
+     * MAX_COST edits
+     */
+    private int[] bisect(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo, m = bHi - bLo, delta = n - m;
+        int maxD = Math.min((n + m + 1) / 2, MAX_COST), offset = maxD, length = 2 * maxD + 2;
+        boolean front = (delta & 1) != 0;
+        // furthest x reached on each diagonal k = x - y, from the start and (counting backwards) from the end
+        int[] forward = new int[length], backward = new int[length];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        // diagonals at the ends of the range that have run off the grid
+        int forwardStart = 0, forwardEnd = 0, backwardStart = 0, backwardEnd = 0;
+        for (int d = 0; d < maxD; ++d) {
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int i = offset + k;
+                int x = k == -d || k != d && forward[i - 1] < forward[i + 1] ? forward[i + 1] : forward[i - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[i] = x;
+                if (x > n) forwardEnd += 2;
+                else if (y > m) forwardStart += 2;
+                else if (front) {
+                    int j = offset + delta - k;
+                    if (j >= 0 && j < length && backward[j] != -1 && x >= n - backward[j])
+                        return new int[]{aLo + x, bLo + y};
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int j = offset + k;
+                int x = k == -d || k != d && backward[j - 1] < backward[j + 1] ? backward[j + 1] : backward[j - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[j] = x;
+                if (x > n) backwardEnd += 2;
+                else if (y > m) backwardStart += 2;
+                else if (!front) {
+                    int i = offset + delta - k;
+                    if (i >= 0 && i < length && forward[i] != -1) {
+                        int forwardX = forward[i], forwardY = forwardX - (delta - k);
+                        if (forwardX >= n - x) return new int[]{aLo + forwardX, bLo + forwardY};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package gitlet;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Measures line diffs and the line merges built on them on large files.
+ *  For a source-like file of LINES lines, reports the time taken to diff it with an edited copy,
+ *  and to merge two edited copies of it, for edits scattered through the file, for edits to 1% of
+ *  its lines on each side, for a file whose lines are mostly the same few (as a file of closing
+ *  braces and blank lines is), and for two files with no lines in common, which Diff.MAX_COST
+ *  keeps from taking quadratic time. Files are made in memory, so no repository is needed.
+ *
+ *  Usage: java gitlet.DiffSpeedTest [LINES]
+ */
+public class DiffSpeedTest {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) {
+        int lines = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        System.out.printf("%d lines per file%n", lines);
+        System.out.printf("%-12s %10s %10s %10s %10s%n", "edits", "hunks", "diff ms", "merge ms", "conflicts");
+        Random random = new Random(61);
+        List<String> base = makeFile(random, lines, 5000);
+        report("scattered", base, edit(random, base, 10, 0, 2), edit(random, base, 10, 1, 2));
+        report("1%", base, edit(random, base, lines / 100, 0, 2), edit(random, base, lines / 100, 1, 2));
+        List<String> repetitive = makeFile(random, lines, 8);
+        report("repetitive", repetitive, edit(random, repetitive, 100, 0, 2), edit(random, repetitive, 100, 1, 2));
+        report("unrelated", base, makeFile(random, lines, 5000), makeFile(random, lines, 5000));
+    }
+
+    /**
+     * Print the best time of a few rounds of diffing BASE with OURS, and of merging OURS and THEIRS
+     */
+    private static void report(String name, List<String> base, List<String> ours, List<String> theirs) {
+        byte[] baseBytes = join(base), ourBytes = join(ours), theirBytes = join(theirs);
+        double diffTime = Double.MAX_VALUE, mergeTime = Double.MAX_VALUE;
+        int hunks = 0;
+        Merge.Content merged = null;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            hunks = Diff.diff(Diff.lines(baseBytes), Diff.lines(ourBytes)).size();
+            diffTime = Math.min(diffTime, (System.nanoTime() - start) / 1e6);
+            start = System.nanoTime();
+            merged = Merge.mergeLines(baseBytes, ourBytes, theirBytes);
+            mergeTime = Math.min(mergeTime, (System.nanoTime() - start) / 1e6);
+        }
+        String text = new String(merged.bytes, StandardCharsets.ISO_8859_1);
+        int conflicts = text.split("<<<<<<< HEAD\n", -1).length - 1;
+        System.out.printf("%-12s %10d %10.1f %10.1f %10d%n", name, hunks, diffTime, mergeTime, conflicts);
+    }
+
+    /**
+     * Return LINES lines of made-up source, drawn from VARIETY different lines
+     */
+    private static List<String> makeFile(Random random, int lines, int variety) {
+        String[] words = {"int", "count", "=", "0;", "for", "(String", "name:", "names)", "return",
+            "result;", "if", "(file.exists())", "stage.addFile(name,", "SHA);", "}", "{", "commit"};
+        List<String> choices = new ArrayList<>();
+        for (int i = 0; i < variety; ++i) {
+            StringBuilder line = new StringBuilder("        ");
+            for (int w = 2 + random.nextInt(6); w > 0; --w) line.append(words[random.nextInt(words.length)]).append(' ');
+            choices.add(line.append(i).append('\n').toString());
+        }
+        List<String> file = new ArrayList<>();
+        for (int i = 0; i < lines; ++i) file.add(choices.get(random.nextInt(variety)));
+        return file;
+    }
+
+    /**
+     * Return a copy of FILE with EDITS lines changed, inserted or removed, each in the part of the
+     * file numbered PART of PARTS in turn, so copies edited in different parts don't conflict
+     */
+    private static List<String> edit(Random random, List<String> file, int edits, int part, int parts) {
+        List<String> edited = new ArrayList<>(file);
+        int stretch = file.size() / edits;
+        // from the end, so the positions of the edits still to make don't move
+        for (int e = edits - 1; e >= 0; --e) {
+            int at = e * stretch + stretch * part / parts + random.nextInt(Math.max(1, stretch / parts - 1));
+            String line = "        edited " + random.nextInt() + "\n";
+            switch (random.nextInt(3)) {
+                case 0: edited.set(at, line); break;
+                case 1: edited.add(at, line); break;
+                default: edited.remove(at);
+            }
+        }
+        return edited;
+    }
+
+    private static byte[] join(List<String> lines) {
+        return String.join("", lines).getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
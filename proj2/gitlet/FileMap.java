@@ -0,0 +1,669 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** The files of a commit and the SHAs of their content, as a tree of directories, each a
+ *  persistent hash-array-mapped trie. A FileMap never changes: with and without return a new map
+ *  that shares every node the change doesn't touch, so a commit that changes k of n files makes
+ *  O(k log n) new nodes, and shares the rest with its parent in memory and on disk.
+ *
+ *  Paths are relative to the repository, with directories separated by '/'. The trie of a
+ *  directory has an entry for each of its files, keyed by name, and one for each subdirectory,
+ *  keyed by name and '/', whose value is the root node of the subdirectory's trie. Each directory
+ *  so has an id of its own, which only depends on the files below it: diff skips a directory, or
+ *  a node of its trie, with the same id in both maps without reading anything under it.
+ *
+ *  Each node covers 5 bits of the hash of the names below it, and holds the entries whose bits
+ *  are unique at its level and a child node for each group of names sharing them. Names whose
+ *  32-bit hashes are equal end in a collision node listing them in order. A child holding a single
+ *  entry is always folded into its parent, so the shape of the trie only depends on which names
+ *  are in it, and equal maps have equal root ids however they were made.
+ *
+ *  Nodes are stored as TREE objects named by the SHA of their encoding (see BinaryFormat):
+ *      data bitmap (4 bytes), child bitmap (4 bytes), number of files below the node (varint),
+ *      number of entries (varint), then each entry: name (string), SHA, or id of the root of the
+ *      subdirectory (20 bytes), then the id of each child (20 bytes), then, only if it differs
+ *      from the number of files, the number of entries in the node's part of the trie (varint)
+ *  A node is written children and subdirectories first, so a node that's stored has all of its
+ *  subtree stored too. Nodes are read on first use and kept in a cache, where the maps of
+ *  neighbouring commits find the nodes they share.
+ */
+final class FileMap extends AbstractMap<String, ObjectId> {
+    /** Most nodes kept in the cache of nodes read */
+    static final int NODE_CACHE_CAPACITY = 1 << 15;
+    private static final int BITS = 5, MASK = (1 << BITS) - 1;
+    /** Shift below which a node is a bitmap node; names still together past it have equal hashes */
+    private static final int MAX_SHIFT = 30;
+
+    static final FileMap EMPTY = new FileMap(Node.EMPTY);
+
+    /** Nodes read from the object store, by id */
+    private static final Map<ObjectId, Node> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Node> eldest) {
+            return size() > NODE_CACHE_CAPACITY;
+        }
+    };
+    /** Bumped when the repository in CWD may have changed, so nodes check they're stored again */
+    private static int generation;
+
+    private final Node root;
+
+    private FileMap(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Return the map with the same entries as MAP
+     */
+    static FileMap of(Map<String, ObjectId> map) {
+        if (map instanceof FileMap) return (FileMap) map;
+        FileMap result = EMPTY;
+        for (Map.Entry<String, ObjectId> entry: map.entrySet()) result = result.with(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    /**
+     * Return the map whose root node is the stored TREE object ID
+     */
+    static FileMap load(ObjectId id) {
+        return new FileMap(loadNode(id));
+    }
+
+    /**
+     * Forget which nodes are stored, e.g. after the repository in CWD was replaced
+     */
+    static synchronized void forgetStored() {
+        generation += 1;
+    }
+
+    /** Id of the root node, which names this map as a TREE object */
+    ObjectId id() {
+        return root.id();
+    }
+
+    /**
+     * Return the map of the files below the directory PATH, relative to it, which is empty if
+     * there are none. Its id is the id of the directory in this map
+     */
+    FileMap directory(String path) {
+        if (path.isEmpty()) return this;
+        Object directory = lookup(root, path + "/");
+        return directory == null ? EMPTY : new FileMap((Node) directory);
+    }
+
+    // Changes //////////////////////////////////////////////////////////////////
+
+    /**
+     * Return this map with PATH mapped to SHA
+     */
+    FileMap with(String path, ObjectId SHA) {
+        Node newRoot = with(root, path, SHA);
+        return newRoot == root ? this : new FileMap(newRoot);
+    }
+
+    private static Node with(Node directory, String path, ObjectId SHA) {
+        int slash = path.indexOf('/');
+        if (slash < 0) return directory.with(path, hash(path), SHA, 0);
+        String name = path.substring(0, slash + 1);
+        Node subdirectory = (Node) directory.get(name, hash(name), 0);
+        if (subdirectory == null) subdirectory = Node.EMPTY;
+        Node newSubdirectory = with(subdirectory, path.substring(slash + 1), SHA);
+        if (newSubdirectory == subdirectory) return directory;
+        return directory.with(name, hash(name), newSubdirectory, 0);
+    }
+
+    /**
+     * Return this map without PATH
+     */
+    FileMap without(String path) {
+        Node newRoot = without(root, path);
+        return newRoot == root ? this : new FileMap(newRoot);
+    }
+
+    private static Node without(Node directory, String path) {
+        int slash = path.indexOf('/');
+        if (slash < 0) return directory.without(path, hash(path), 0);
+        String name = path.substring(0, slash + 1);
+        Node subdirectory = (Node) directory.get(name, hash(name), 0);
+        if (subdirectory == null) return directory;
+        Node newSubdirectory = without(subdirectory, path.substring(slash + 1));
+        if (newSubdirectory == subdirectory) return directory;
+        // a directory goes away with its last file
+        if (newSubdirectory.size == 0) return directory.without(name, hash(name), 0);
+        return directory.with(name, hash(name), newSubdirectory, 0);
+    }
+
+    /**
+     * Return this map with every entry of OTHER put in it, replacing those of the same files.
+     * Only the parts of OTHER whose nodes differ from those of this map are visited
+     */
+    FileMap withAll(FileMap other) {
+        List<Map.Entry<String, ObjectId>> entries = new ArrayList<>();
+        diff(this, other, (path, mine, theirs) -> {
+            if (theirs != null) entries.add(new SimpleImmutableEntry<>(path, theirs));
+        });
+        FileMap result = this;
+        for (Map.Entry<String, ObjectId> entry: entries) result = result.with(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    // Differences //////////////////////////////////////////////////////////////
+
+    /** Told of each path whose SHA differs between two maps */
+    interface Visitor {
+        /**
+         * Called with PATH and its SHA in each map, which is null in the map that doesn't have it
+         */
+        void visit(String path, ObjectId before, ObjectId after);
+    }
+
+    /**
+     * Tell VISITOR of each path whose SHA differs between BEFORE and AFTER, directory by
+     * directory. Directories and nodes with the same id in both are skipped unread
+     */
+    static void diff(FileMap before, FileMap after, Visitor visitor) {
+        diff(before.root, after.root, 0, "", visitor);
+    }
+
+    /**
+     * Tell VISITOR of the differences between A and B, nodes at level SHIFT of the tries of the
+     * directory PREFIX
+     */
+    private static void diff(Node a, Node b, int shift, String prefix, Visitor visitor) {
+        if (a == b || a.id().equals(b.id())) return;
+        if (a.isCollision() || b.isCollision()) {
+            diff(a.entries(), b.entries(), prefix, visitor);
+            return;
+        }
+        for (int bits = a.dataMap | a.nodeMap | b.dataMap | b.nodeMap; bits != 0; bits &= bits - 1) {
+            int bit = Integer.lowestOneBit(bits);
+            if ((a.dataMap & bit) != 0 && (b.dataMap & bit) != 0) {
+                int i = index(a.dataMap, bit), j = index(b.dataMap, bit);
+                if (a.keys[i].equals(b.keys[j])) diff(a.keys[i], a.value(i), b.value(j), prefix, visitor);
+                else {
+                    diff(a.keys[i], a.value(i), null, prefix, visitor);
+                    diff(b.keys[j], null, b.value(j), prefix, visitor);
+                }
+            }
+            // an entry on one side and a child on the other: compare them name by name
+            else if ((a.dataMap & bit) != 0 || (b.dataMap & bit) != 0)
+                diff(a.entriesAt(bit), b.entriesAt(bit), prefix, visitor);
+            else diff(a.childAt(bit), b.childAt(bit), shift + BITS, prefix, visitor);
+        }
+    }
+
+    private static void diff(Map<String, Object> a, Map<String, Object> b, String prefix, Visitor visitor) {
+        for (Map.Entry<String, Object> entry: a.entrySet())
+            diff(entry.getKey(), entry.getValue(), b.get(entry.getKey()), prefix, visitor);
+        for (Map.Entry<String, Object> entry: b.entrySet())
+            if (!a.containsKey(entry.getKey())) diff(entry.getKey(), null, entry.getValue(), prefix, visitor);
+    }
+
+    /**
+     * Tell VISITOR of the differences between the values A and B of KEY, either of which may be
+     * null, in the directory PREFIX
+     */
+    private static void diff(String key, Object a, Object b, String prefix, Visitor visitor) {
+        if (isDirectory(key)) {
+            diff(a == null ? Node.EMPTY : (Node) a, b == null ? Node.EMPTY : (Node) b, 0, prefix + key, visitor);
+            return;
+        }
+        if (a == null || !a.equals(b)) visitor.visit(prefix + key, (ObjectId) a, (ObjectId) b);
+    }
+
+    // Storing //////////////////////////////////////////////////////////////////
+
+    /**
+     * Write the nodes of this map that aren't stored yet as TREE objects
+     */
+    void store() throws IOException {
+        root.store(currentGeneration());
+    }
+
+    private static synchronized int currentGeneration() {
+        return generation;
+    }
+
+    private static Node loadNode(ObjectId id) {
+        synchronized (cache) {
+            Node node = cache.get(id);
+            if (node != null) return node;
+        }
+        Node node = Node.decode(ObjectStore.read(ObjectStore.TREE, id), id, currentGeneration());
+        synchronized (cache) {
+            cache.put(id, node);
+        }
+        return node;
+    }
+
+    // Map //////////////////////////////////////////////////////////////////////
+
+    @Override
+    public ObjectId get(Object key) {
+        if (!(key instanceof String)) return null;
+        Object value = lookup(root, (String) key);
+        return value instanceof ObjectId ? (ObjectId) value : null;
+    }
+
+    /**
+     * Return the value of PATH below DIRECTORY: the SHA of a file, the root node of a directory if
+     * PATH ends with '/', or null if there's none
+     */
+    private static Object lookup(Node directory, String path) {
+        int start = 0, slash;
+        while ((slash = path.indexOf('/', start)) >= 0 && slash < path.length() - 1) {
+            String name = path.substring(start, slash + 1);
+            directory = (Node) directory.get(name, hash(name), 0);
+            if (directory == null) return null;
+            start = slash + 1;
+        }
+        String name = path.substring(start);
+        return directory.get(name, hash(name), 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return root.size;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (object instanceof FileMap) return id().equals(((FileMap) object).id());
+        return super.equals(object);
+    }
+
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    @Override
+    public Set<Map.Entry<String, ObjectId>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, ObjectId>> iterator() {
+                return new Entries(root);
+            }
+
+            @Override
+            public int size() {
+                return root.size;
+            }
+        };
+    }
+
+    /** Files of a tree, directory by directory, and in each in the order of their hashes */
+    private static class Entries implements Iterator<Map.Entry<String, ObjectId>> {
+        /** Nodes being visited, each with its directory, and the index of its next entry, then of its next child */
+        private final Deque<Node> nodes = new ArrayDeque<>();
+        private final Deque<String> prefixes = new ArrayDeque<>();
+        private final Deque<int[]> positions = new ArrayDeque<>();
+
+        Entries(Node root) {
+            push(root, "");
+        }
+
+        private void push(Node node, String prefix) {
+            nodes.push(node);
+            prefixes.push(prefix);
+            positions.push(new int[2]);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!nodes.isEmpty()) {
+                Node node = nodes.peek();
+                int[] position = positions.peek();
+                if (position[0] < node.keys.length) {
+                    if (!isDirectory(node.keys[position[0]])) return true;
+                    int i = position[0]++;
+                    push((Node) node.value(i), prefixes.peek() + node.keys[i]);
+                }
+                else if (position[1] < node.children.length) push(node.child(position[1]++), prefixes.peek());
+                else {
+                    nodes.pop();
+                    prefixes.pop();
+                    positions.pop();
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String, ObjectId> next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Node node = nodes.peek();
+            int i = positions.peek()[0]++;
+            return new SimpleImmutableEntry<>(prefixes.peek() + node.keys[i], (ObjectId) node.values[i]);
+        }
+    }
+
+    // Nodes ////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return the hash of NAME the trie is keyed by: String.hashCode, which is the same in every
+     * JVM, with its bits mixed so names differing in their last characters still spread out
+     */
+    private static int hash(String name) {
+        int h = name.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /** Return the position among the entries or children of BITMAP of the one at BIT */
+    private static int index(int bitmap, int bit) {
+        return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    /** Return true if KEY names a subdirectory rather than a file */
+    private static boolean isDirectory(String key) {
+        return key.endsWith("/");
+    }
+
+    /** Return the number of files of VALUE, the SHA of a file or the root of a directory */
+    private static int filesIn(Object value) {
+        return value instanceof Node ? ((Node) value).size : 1;
+    }
+
+    private static final class Node {
+        static final Node EMPTY = new Node(0, 0, new String[0], new Object[0], new Object[0], 0, 0);
+
+        /** Bits of the entries and of the children; both are 0 in a collision node */
+        final int dataMap, nodeMap;
+        final String[] keys;
+        /** The SHA of each file, and the root of each directory, or its id until it's read */
+        final Object[] values;
+        /** Each child, or its id until it's read */
+        final Object[] children;
+        /** Number of files below this node, and of entries in its part of the trie */
+        final int size, entries;
+        private ObjectId id;
+        /** Generation in which this node was last known to be stored */
+        private int storedIn = -1;
+
+        Node(int dataMap, int nodeMap, String[] keys, Object[] values, Object[] children, int size, int entries) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.keys = keys;
+            this.values = values;
+            this.children = children;
+            this.size = size;
+            this.entries = entries;
+        }
+
+        boolean isCollision() {
+            return dataMap == 0 && keys.length > 0;
+        }
+
+        Node child(int i) {
+            Object child = children[i];
+            if (child instanceof Node) return (Node) child;
+            Node node = loadNode((ObjectId) child);
+            children[i] = node;
+            return node;
+        }
+
+        private ObjectId childID(int i) {
+            Object child = children[i];
+            return child instanceof Node ? ((Node) child).id() : (ObjectId) child;
+        }
+
+        /** Return the SHA of the i-th entry, or the root node of its directory */
+        Object value(int i) {
+            Object value = values[i];
+            if (!isDirectory(keys[i]) || value instanceof Node) return value;
+            Node node = loadNode((ObjectId) value);
+            values[i] = node;
+            return node;
+        }
+
+        private ObjectId valueID(int i) {
+            Object value = values[i];
+            return value instanceof Node ? ((Node) value).id() : (ObjectId) value;
+        }
+
+        Node childAt(int bit) {
+            return (nodeMap & bit) != 0 ? child(index(nodeMap, bit)) : EMPTY;
+        }
+
+        /** Return the entries of the entry or child at BIT, by name */
+        Map<String, Object> entriesAt(int bit) {
+            if ((dataMap & bit) == 0) return childAt(bit).entries();
+            int i = index(dataMap, bit);
+            return Map.of(keys[i], value(i));
+        }
+
+        /** Return the entries of this node and its children, by name */
+        Map<String, Object> entries() {
+            Map<String, Object> result = new HashMap<>();
+            addEntries(result);
+            return result;
+        }
+
+        private void addEntries(Map<String, Object> result) {
+            for (int i = 0; i < keys.length; ++i) result.put(keys[i], value(i));
+            for (int i = 0; i < children.length; ++i) child(i).addEntries(result);
+        }
+
+        Object get(String key, int hash, int shift) {
+            if (isCollision()) {
+                int i = Arrays.binarySearch(keys, key);
+                return i >= 0 ? value(i) : null;
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                return keys[i].equals(key) ? value(i) : null;
+            }
+            if ((nodeMap & bit) != 0) return child(index(nodeMap, bit)).get(key, hash, shift + BITS);
+            return null;
+        }
+
+        /**
+         * Return this node with KEY mapped to VALUE, which is the SHA of a file, or the root node
+         * of a directory that has files
+         */
+        Node with(String key, int hash, Object value, int shift) {
+            if (isCollision()) {
+                int i = Arrays.binarySearch(keys, key);
+                if (i >= 0) return replace(i, value);
+                i = -i - 1;
+                return new Node(0, 0, insert(keys, i, key), insert(values, i, value), children,
+                        size + filesIn(value), entries + 1);
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                if (keys[i].equals(key)) return replace(i, value);
+                // the two names share these bits, so they go down into a child of their own
+                Node pair = pair(keys[i], FileMap.hash(keys[i]), value(i), key, hash, value, shift + BITS);
+                int newNodeMap = nodeMap | bit;
+                return new Node(dataMap & ~bit, newNodeMap, remove(keys, i), remove(values, i),
+                        insert(children, index(newNodeMap, bit), pair), size + filesIn(value), entries + 1);
+            }
+            if ((nodeMap & bit) != 0) {
+                int i = index(nodeMap, bit);
+                Node child = child(i), newChild = child.with(key, hash, value, shift + BITS);
+                if (newChild == child) return this;
+                Object[] newChildren = children.clone();
+                newChildren[i] = newChild;
+                return new Node(dataMap, nodeMap, keys, values, newChildren, size - child.size + newChild.size,
+                        entries - child.entries + newChild.entries);
+            }
+            int newDataMap = dataMap | bit, i = index(newDataMap, bit);
+            return new Node(newDataMap, nodeMap, insert(keys, i, key), insert(values, i, value), children,
+                    size + filesIn(value), entries + 1);
+        }
+
+        /** Return this node with the value of its i-th entry replaced by VALUE */
+        private Node replace(int i, Object value) {
+            Object old = value(i);
+            if (old == value || old instanceof ObjectId && old.equals(value)) return this;
+            Object[] newValues = values.clone();
+            newValues[i] = value;
+            return new Node(dataMap, nodeMap, keys, newValues, children, size - filesIn(old) + filesIn(value), entries);
+        }
+
+        /**
+         * Return the node, at level SHIFT, holding just the two given entries
+         */
+        private static Node pair(String key1, int hash1, Object value1, String key2, int hash2, Object value2,
+                                 int shift) {
+            int size = filesIn(value1) + filesIn(value2);
+            if (shift > MAX_SHIFT) {
+                if (key1.compareTo(key2) > 0) return pair(key2, hash2, value2, key1, hash1, value1, shift);
+                return new Node(0, 0, new String[]{key1, key2}, new Object[]{value1, value2}, new Object[0], size, 2);
+            }
+            int bit1 = bit(hash1, shift), bit2 = bit(hash2, shift);
+            if (bit1 == bit2)
+                return new Node(0, bit1, new String[0], new Object[0],
+                        new Object[]{pair(key1, hash1, value1, key2, hash2, value2, shift + BITS)}, size, 2);
+            if (Integer.compareUnsigned(bit1, bit2) > 0) return pair(key2, hash2, value2, key1, hash1, value1, shift);
+            return new Node(bit1 | bit2, 0, new String[]{key1, key2}, new Object[]{value1, value2}, new Object[0],
+                    size, 2);
+        }
+
+        Node without(String key, int hash, int shift) {
+            if (isCollision()) {
+                int i = Arrays.binarySearch(keys, key);
+                if (i < 0) return this;
+                return new Node(0, 0, remove(keys, i), remove(values, i), children, size - filesIn(value(i)),
+                        entries - 1);
+            }
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = index(dataMap, bit);
+                if (!keys[i].equals(key)) return this;
+                return new Node(dataMap & ~bit, nodeMap, remove(keys, i), remove(values, i), children,
+                        size - filesIn(value(i)), entries - 1);
+            }
+            if ((nodeMap & bit) == 0) return this;
+            int i = index(nodeMap, bit);
+            Node child = child(i), newChild = child.without(key, hash, shift + BITS);
+            if (newChild == child) return this;
+            int newSize = size - child.size + newChild.size;
+            if (newChild.entries == 1) {
+                // fold the remaining entry into this node, as if it had been the only one put there
+                int newDataMap = dataMap | bit, j = index(newDataMap, bit);
+                return new Node(newDataMap, nodeMap & ~bit, insert(keys, j, newChild.keys[0]),
+                        insert(values, j, newChild.values[0]), remove(children, i), newSize, entries - 1);
+            }
+            Object[] newChildren = children.clone();
+            newChildren[i] = newChild;
+            return new Node(dataMap, nodeMap, keys, values, newChildren, newSize, entries - 1);
+        }
+
+        // Encoding /////////////////////////////////////////////////////////////
+
+        ObjectId id() {
+            if (id == null) id = ObjectId.hash((Object) encode());
+            return id;
+        }
+
+        byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 64 * keys.length + 20 * children.length);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(dataMap);
+                out.writeInt(nodeMap);
+                BinaryFormat.writeVarint(out, size);
+                BinaryFormat.writeVarint(out, keys.length);
+                for (int i = 0; i < keys.length; ++i) {
+                    BinaryFormat.writeString(out, keys[i]);
+                    BinaryFormat.writeId(out, valueID(i));
+                }
+                for (int i = 0; i < children.length; ++i) BinaryFormat.writeId(out, childID(i));
+                // left out below directories of files only, whose nodes read the same as before
+                if (entries != size) BinaryFormat.writeVarint(out, entries);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return bytes.toByteArray();
+        }
+
+        static Node decode(byte[] bytes, ObjectId id, int generation) {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            int dataMap = in.getInt(), nodeMap = in.getInt();
+            int size = BinaryFormat.readVarint(in), count = BinaryFormat.readVarint(in);
+            String[] keys = new String[count];
+            Object[] values = new Object[count];
+            for (int i = 0; i < count; ++i) {
+                keys[i] = BinaryFormat.readString(in);
+                values[i] = BinaryFormat.readId(in);
+            }
+            Object[] children = new Object[Integer.bitCount(nodeMap)];
+            for (int i = 0; i < children.length; ++i) children[i] = BinaryFormat.readId(in);
+            int entries = in.hasRemaining() ? BinaryFormat.readVarint(in) : size;
+            Node node = new Node(dataMap, nodeMap, keys, values, children, size, entries);
+            node.id = id;
+            node.storedIn = generation;
+            return node;
+        }
+
+        /**
+         * Write this node, and whichever of its children and directories aren't stored, unless
+         * it's already stored
+         */
+        void store(int generation) throws IOException {
+            if (storedIn == generation) return;
+            if (!ObjectStore.contains(ObjectStore.TREE, id())) {
+                for (Object child: children)
+                    if (child instanceof Node) ((Node) child).store(generation);
+                for (Object value: values)
+                    if (value instanceof Node) ((Node) value).store(generation);
+                ObjectStore.writeLoose(ObjectStore.TREE, id(), encode());
+            }
+            storedIn = generation;
+        }
+
+        private static String[] insert(String[] array, int i, String element) {
+            String[] result = new String[array.length + 1];
+            System.arraycopy(array, 0, result, 0, i);
+            result[i] = element;
+            System.arraycopy(array, i, result, i + 1, array.length - i);
+            return result;
+        }
+
+        private static Object[] insert(Object[] array, int i, Object element) {
+            Object[] result = new Object[array.length + 1];
+            System.arraycopy(array, 0, result, 0, i);
+            result[i] = element;
+            System.arraycopy(array, i, result, i + 1, array.length - i);
+            return result;
+        }
+
+        private static <T> T[] remove(T[] array, int i) {
+            T[] result = Arrays.copyOf(array, array.length - 1);
+            System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+            return result;
+        }
+    }
+}
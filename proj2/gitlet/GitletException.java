@@ -19,9 +19,11 @@ class GitletException extends RuntimeException {
         super(msg);
     }
 
+    /**
+     * Abort the running command with MESSAGE, which Main prints as the command's output
+     */
     static void handleException(String message) {
-        System.out.println(message);
-        System.exit(0);
+        throw new GitletException(message);
     }
 
 //    static void handleNoArguments() {
@@ -0,0 +1,280 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static gitlet.Repository.*;
+
+/** One-time upgrade of a repository made by the original gitlet, which had no .gitlet/format file.
+ *  It stored with Java serialization each commit in .gitlet/objects, with its ancestors inside
+ *  it, the commit tree in .gitlet/commit_tree and the staging area in .gitlet/staging_area, and
+ *  kept a copy of each file a commit changed in .gitlet/backup/COMMIT/FILE.
+ *
+ *  Those are read into the Old classes below, which have the fields of the original classes, and
+ *  written again as the current gitlet stores them: file contents in the blob store, commits in
+ *  their binary encoding, and the commit tree and index in theirs. Commits are hashed as this
+ *  gitlet hashes them, so every commit but the initial one gets a new id.
+ *
+ *  .gitlet/upgrading exists from the first object written until the format file is, so an upgrade
+ *  that was interrupted after the new commit tree replaced the old one is finished by the next
+ *  command. Any other repository without a format file is refused with UNSUPPORTED_FORMAT.
+ */
+class LegacyRepository {
+    /** Names of the original classes, by the classes read in their place */
+    private static final Map<String, Class<?>> OLD_CLASSES = Map.of(
+            "gitlet.Commit", OldCommit.class, "gitlet.CommitTree", OldCommitTree.class,
+            "gitlet.Stage", OldStage.class);
+
+    /** Fields of the original Commit */
+    static class OldCommit implements Serializable {
+        Map<String, String> fileToContent; // mapping file name to SHA of its content
+        Map<String, String> fileToCommit; // mapping file name to id of the commit whose backup has it
+        OldCommit parent;
+        OldCommit secondParent;
+        String message;
+        Date time;
+        List<Object> objectsToHash;
+
+        /** Return the id the original gitlet gave this commit */
+        String id() {
+            if (objectsToHash.isEmpty()) {
+                if (parent != null) objectsToHash.add(parent.id());
+                objectsToHash.add(message);
+                objectsToHash.add(time.toString());
+                objectsToHash.add(fileToContent.toString());
+            }
+            return Utils.sha1(objectsToHash);
+        }
+    }
+
+    /** Fields of the original CommitTree */
+    static class OldCommitTree implements Serializable {
+        OldCommit head;
+        String currentBranchName;
+        Map<String, OldCommit> branches;
+    }
+
+    /** Fields of the original Stage */
+    static class OldStage implements Serializable {
+        Map<String, String> fileNameToContent;
+        Set<String> removalFileSet;
+    }
+
+    /**
+     * Return true if the repository in CWD, which has no format file, was made by the original
+     * gitlet, or is one whose upgrade was interrupted
+     */
+    static boolean isLegacy() {
+        return UPGRADE_MARKER.exists()
+                || (COMMIT_TREE.isFile() && BinaryFormat.isSerialized(Utils.readContents(COMMIT_TREE)));
+    }
+
+    /**
+     * Upgrade the repository in CWD, which isLegacy, to FORMAT_VERSION, writing its format file last.
+     * Objects are written in FORMAT_VERSION, which formatVersion must already return
+     */
+    static void upgrade() throws IOException {
+        if (BinaryFormat.isSerialized(Utils.readContents(COMMIT_TREE))) {
+            OldCommitTree oldTree = read(COMMIT_TREE, OldCommitTree.class);
+            OldStage oldStage = LEGACY_STAGING_AREA.exists() ? read(LEGACY_STAGING_AREA, OldStage.class) : null;
+            Map<String, OldCommit> oldCommits = readCommits(oldTree);
+            UPGRADE_MARKER.createNewFile();
+
+            Map<String, Commit> commits = writeCommits(oldCommits);
+            Stage stage = new Stage();
+            if (oldStage != null) upgradeStage(oldStage, stage);
+            stage.write();
+            CommitTree commitTree = new CommitTree(commits.get(oldTree.head.id()));
+            commitTree.currentBranchName = oldTree.currentBranchName;
+            commitTree.branches.clear();
+            for (Map.Entry<String, OldCommit> branch: oldTree.branches.entrySet())
+                commitTree.branches.put(branch.getKey(), commits.get(branch.getValue().id()).getID());
+            commitTree.write();
+        }
+
+        // what's left of the original repository
+        for (ObjectId id: ObjectStore.ids(ObjectStore.COMMIT)) {
+            File file = ObjectStore.looseFile(ObjectStore.COMMIT, id);
+            if (BinaryFormat.isSerialized(Utils.readContents(file))) file.delete();
+        }
+        if (LEGACY_BACKUP_DIR.exists()) Utils.deleteDirectory(LEGACY_BACKUP_DIR);
+        LEGACY_STAGING_AREA.delete();
+        writeFormatVersion(FORMAT_VERSION);
+        UPGRADE_MARKER.delete();
+        System.err.println("Upgraded the repository to format " + FORMAT_VERSION + "; commits have new ids.");
+    }
+
+    /**
+     * Return every commit of the original repository by its id: those in .gitlet/objects and
+     * their ancestors, and those of the branches of OLDTREE
+     */
+    private static Map<String, OldCommit> readCommits(OldCommitTree oldTree) {
+        Deque<OldCommit> found = new ArrayDeque<>(oldTree.branches.values());
+        found.push(oldTree.head);
+        for (ObjectId id: ObjectStore.ids(ObjectStore.COMMIT)) {
+            // skipping the commits an interrupted upgrade wrote
+            File file = ObjectStore.looseFile(ObjectStore.COMMIT, id);
+            if (BinaryFormat.isSerialized(Utils.readContents(file))) found.push(read(file, OldCommit.class));
+        }
+
+        Map<String, OldCommit> commits = new HashMap<>();
+        while (!found.isEmpty()) {
+            OldCommit commit = found.pop();
+            if (commits.putIfAbsent(commit.id(), commit) != null) continue;
+            if (commit.parent != null) found.push(commit.parent);
+            if (commit.secondParent != null) found.push(commit.secondParent);
+        }
+        return commits;
+    }
+
+    /**
+     * Write each of OLDCOMMITS as this gitlet stores commits, parents before children, with the
+     * files of its backup copies in the blob store. Return the new commits by their old ids
+     */
+    private static Map<String, Commit> writeCommits(Map<String, OldCommit> oldCommits) throws IOException {
+        Map<String, Commit> commits = new HashMap<>();
+        Map<File, ObjectId> blobs = new HashMap<>();
+        for (OldCommit root: oldCommits.values()) {
+            // with an explicit stack, as in CommitGraph.rebuild, since histories can be deep
+            Deque<OldCommit> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                OldCommit oldCommit = stack.peek();
+                if (commits.containsKey(oldCommit.id())) {
+                    stack.pop();
+                    continue;
+                }
+                boolean parentsDone = true;
+                for (OldCommit parent: new OldCommit[]{oldCommit.parent, oldCommit.secondParent}) {
+                    if (parent != null && !commits.containsKey(parent.id())) {
+                        stack.push(parent);
+                        parentsDone = false;
+                    }
+                }
+                if (!parentsDone) continue;
+                stack.pop();
+                commits.put(oldCommit.id(), writeCommit(oldCommit, commits, blobs));
+            }
+        }
+        return commits;
+    }
+
+    private static Commit writeCommit(OldCommit oldCommit, Map<String, Commit> commits, Map<File, ObjectId> blobs)
+            throws IOException {
+        Map<String, ObjectId> files = new TreeMap<>();
+        for (String fileName: oldCommit.fileToContent.keySet()) {
+            String holder = oldCommit.fileToCommit.get(fileName);
+            File backup = holder == null ? null : Utils.join(LEGACY_BACKUP_DIR, holder, fileName);
+            if (backup == null || !backup.isFile())
+                GitletException.handleException("Cannot upgrade the repository: the copy of " + fileName
+                        + " in commit " + oldCommit.id() + " is missing.");
+            ObjectId SHA = blobs.get(backup);
+            if (SHA == null) {
+                SHA = ObjectId.hashOf(backup);
+                BlobStore.save(SHA, backup);
+                blobs.put(backup, SHA);
+            }
+            files.put(fileName, SHA);
+        }
+
+        Commit commit = new Commit(null, null, null);
+        if (oldCommit.parent != null) commit.parentID = commits.get(oldCommit.parent.id()).getID();
+        if (oldCommit.secondParent != null) commit.secondParentID = commits.get(oldCommit.secondParent.id()).getID();
+        commit.message = oldCommit.message;
+        commit.time = oldCommit.time;
+        commit.fileToContent = FileMap.of(files);
+
+        ObjectId id = commit.getID();
+        commit.fileToContent.store();
+        // the initial commit keeps its id, so its original file is in the way
+        File file = ObjectStore.looseFile(ObjectStore.COMMIT, id);
+        if (file.exists() && BinaryFormat.isSerialized(Utils.readContents(file))) file.delete();
+        ObjectStore.writeLoose(ObjectStore.COMMIT, id, commit.encode());
+        return commit;
+    }
+
+    /**
+     * Stage in STAGE what OLDSTAGE staged. The original gitlet stored a staged file's content when
+     * it was committed, so a file staged for addition is staged with the content it has now, and
+     * dropped from the stage if it's gone
+     */
+    private static void upgradeStage(OldStage oldStage, Stage stage) throws IOException {
+        for (String fileName: oldStage.fileNameToContent.keySet()) {
+            File file = Utils.join(CWD, fileName);
+            if (!file.isFile()) continue;
+            ObjectId SHA = ObjectId.hashOf(file);
+            BlobStore.save(SHA, file);
+            stage.addFile(fileName, SHA);
+        }
+        for (String fileName: oldStage.removalFileSet) stage.addFileToRemove(fileName);
+    }
+
+    // Reading Java serialization ///////////////////////////////////////////////
+
+    /**
+     * Return the object of class TYPE serialized in FILE by the original gitlet, failing with
+     * UNSUPPORTED_FORMAT if it isn't one
+     */
+    private static <T> T read(File file, Class<T> type) {
+        try (ObjectInputStream in = new OldObjectInputStream(new ByteArrayInputStream(Utils.readContents(file)))) {
+            return type.cast(in.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException excp) {
+            Repository.unsupportedFormat();
+            return null;
+        }
+    }
+
+    /** Reads the original classes as the Old classes, and nothing but them and the collections they hold */
+    private static class OldObjectInputStream extends ObjectInputStream {
+        OldObjectInputStream(InputStream in) throws IOException {
+            super(in);
+            setObjectInputFilter(ObjectInputFilter.Config.createFilter("java.lang.*;java.util.*;gitlet.*;!*"));
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass stored = super.readClassDescriptor();
+            Class<?> oldClass = OLD_CLASSES.get(stored.getName());
+            if (oldClass == null) return stored;
+            ObjectStreamClass local = ObjectStreamClass.lookup(oldClass);
+            // a class of the same name from a later gitlet has other fields
+            if (!sameFields(stored.getFields(), local.getFields()))
+                throw new InvalidClassException(stored.getName(), "not a class of the original gitlet");
+            return local;
+        }
+
+        private static boolean sameFields(ObjectStreamField[] stored, ObjectStreamField[] local) {
+            if (stored.length != local.length) return false;
+            for (int i = 0; i < stored.length; ++i) {
+                if (!stored[i].getName().equals(local[i].getName())) return false;
+                if (stored[i].getTypeCode() != local[i].getTypeCode()) return false;
+                if (!stored[i].isPrimitive() && !localType(stored[i].getTypeString()).equals(local[i].getTypeString()))
+                    return false;
+            }
+            return true;
+        }
+
+        /** Return the type string of a field of the Old classes for TYPESTRING, of an original field */
+        private static String localType(String typeString) {
+            String name = typeString.substring(1, typeString.length() - 1).replace('/', '.');
+            Class<?> oldClass = OLD_CLASSES.get(name);
+            return oldClass == null ? typeString : "L" + oldClass.getName().replace('.', '/') + ";";
+        }
+    }
+}
@@ -14,56 +14,93 @@ public class Main {
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
      */
     public static void main(String[] args) {
-        try {
-            if (args.length == 0) GitletException.handleException("Please enter a command.");
-            String firstArg = args[0];
-            switch (firstArg) {
-                case "init":
-                    init(args);
-                    break;
-                case "add":
-                    add(args);
-                    break;
-                case "commit":
-                    commit(args);
-                    break;
-                case "rm":
-                    rm(args);
-                    break;
-                case "log":
-                    log(args);
-                    break;
-                case "global-log":
-                    globalLog(args);
-                    break;
-                case "find":
-                    find(args);
-                    break;
-                case "status":
-                    status(args);
-                    break;
-                case "checkout":
-                    checkout(args);
-                    break;
-                case "branch":
-                    branch(args);
-                    break;
+        run(args);
+    }
 
-                case "rm-branch":
-                    rmBranch(args);
-                    break;
-                case "reset":
-                    reset(args);
-                    break;
-                case "merge":
-                    merge(args);
-                    break;
-                default:
-                    GitletException.handleException("No command with that name exists.");
+    /**
+     * Run the command ARGS, printing its output. A command aborted by GitletException.handleException
+     * prints the message instead, and leaves the repository as it was
+     */
+    static void run(String[] args) {
+        try {
+            dispatch(args);
+            if (Boolean.getBoolean("gitlet.stats")) {
+                Session session = Session.current();
+                System.err.printf("commit cache: %d hits, %d misses, %d cached\n", session.hits(),
+                        session.misses(), session.cachedCommits());
             }
         }
+        catch(GitletException e) {
+            Session.current().discard();
+            System.out.println(e.getMessage());
+        }
         catch(IOException e) {
+            Session.current().discard();
             System.out.println(e.getMessage());
         }
     }
+
+    /**
+     * Execute the command ARGS
+     */
+    static void dispatch(String[] args) throws IOException {
+        if (args.length == 0) GitletException.handleException("Please enter a command.");
+        String firstArg = args[0];
+        switch (firstArg) {
+            case "init":
+                init(args);
+                break;
+            case "add":
+                add(args);
+                break;
+            case "commit":
+                commit(args);
+                break;
+            case "rm":
+                rm(args);
+                break;
+            case "log":
+                log(args);
+                break;
+            case "global-log":
+                globalLog(args);
+                break;
+            case "find":
+                find(args);
+                break;
+            case "status":
+                status(args);
+                break;
+            case "diff":
+                diff(args);
+                break;
+            case "checkout":
+                checkout(args);
+                break;
+            case "branch":
+                branch(args);
+                break;
+
+            case "rm-branch":
+                rmBranch(args);
+                break;
+            case "reset":
+                reset(args);
+                break;
+            case "merge":
+                merge(args);
+                break;
+            case "gc":
+                gc(args);
+                break;
+            case "batch":
+                Batch.command(args);
+                break;
+            case "daemon":
+                Daemon.command(args);
+                break;
+            default:
+                GitletException.handleException("No command with that name exists.");
+        }
+    }
 }
@@ -0,0 +1,191 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** The result of merging a branch into head, worked out in memory from the two commits and their
+ *  split point before anything is written. Only the files that differ between the split point
+ *  and either commit are looked at (see FileMap.diff); the others are the same in all three.
+ *  Each of those files is kept as it is in head, taken from the branch, deleted, or in conflict:
+ *      in all three: taken if only the branch changed it, in conflict if both changed it differently
+ *      not in the split point: taken if only the branch has it, in conflict if both have it with
+ *          different contents
+ *      not in head: in conflict if the branch changed it
+ *      not in the branch: deleted if head didn't change it, in conflict otherwise
+ *  Commands.merge then writes the working files and records the result on the stage in one pass.
+ *
+ *  A file both commits have, changed differently, is merged line by line, as diff3 does: the
+ *  hunks where each side differs from the split point (see Diff) are taken from whichever side
+ *  changed them, and only hunks both sides changed differently, or that touch, are left between
+ *  conflict markers. The file is only in conflict if such a hunk is left. A file that's missing
+ *  on a side or binary, or whose every line conflicts, is left whole between the markers.
+ */
+class Merge {
+    /** Files taken from the branch, with the SHAs of their content */
+    final Map<String, ObjectId> taken = new TreeMap<>();
+    /** Files deleted */
+    final Set<String> deleted = new TreeSet<>();
+    /** Files in conflict, with their SHAs in the split point, head and the branch, any of which may be null */
+    final Map<String, ObjectId[]> conflicts = new TreeMap<>();
+    /** Files written that head doesn't track, so a working file of the same name is in the way */
+    final List<String> untracked = new ArrayList<>();
+
+    /**
+     * Return the merge of BRANCH into HEAD, whose split point is SPLIT
+     */
+    static Merge of(Commit head, Commit branch, Commit split) {
+        Set<String> files = new HashSet<>();
+        FileMap.diff(split.fileToContent, head.fileToContent, (fileName, inSplit, inHead) -> files.add(fileName));
+        FileMap.diff(split.fileToContent, branch.fileToContent, (fileName, inSplit, inBranch) -> files.add(fileName));
+
+        Merge merge = new Merge();
+        for (String fileName: files)
+            merge.add(fileName, split.getFileContent(fileName), head.getFileContent(fileName),
+                    branch.getFileContent(fileName));
+        return merge;
+    }
+
+    /**
+     * Work out the merge of FILENAME, given its SHA in each commit, null in those without it
+     */
+    private void add(String fileName, ObjectId inSplit, ObjectId inHead, ObjectId inBranch) {
+        if (inBranch != null && inBranch.equals(inSplit) || inBranch != null && inBranch.equals(inHead)) return;
+        if (inBranch == null) {
+            if (inHead == null || inSplit == null) return;
+            if (inHead.equals(inSplit)) deleted.add(fileName);
+            else conflicts.put(fileName, new ObjectId[]{inSplit, inHead, null});
+            return;
+        }
+        // the branch added or changed the file, to something head doesn't have
+        if (inHead == null) {
+            untracked.add(fileName);
+            if (inSplit == null) taken.put(fileName, inBranch);
+            else conflicts.put(fileName, new ObjectId[]{inSplit, null, inBranch});
+        }
+        else if (inHead.equals(inSplit)) taken.put(fileName, inBranch);
+        else conflicts.put(fileName, new ObjectId[]{inSplit, inHead, inBranch});
+    }
+
+    /** Content a file is left with by a merge, and whether any of it is in conflict */
+    static final class Content {
+        final byte[] bytes;
+        final boolean conflicted;
+
+        Content(byte[] bytes, boolean conflicted) {
+            this.bytes = bytes;
+            this.conflicted = conflicted;
+        }
+    }
+
+    private static final byte[] OURS_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+    /** End of a conflict that spans the whole file, as merge has always written it */
+    private static final byte[] WHOLE_THEIRS_MARKER = ">>>>>>>\r\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Return the content of a file in conflict, given its SHAs in the split point, head and the
+     * branch, any of which may be null for a file that isn't there
+     */
+    static Content content(ObjectId inSplit, ObjectId inHead, ObjectId inBranch) {
+        byte[] ours = inHead == null ? null : BlobStore.read(inHead);
+        byte[] theirs = inBranch == null ? null : BlobStore.read(inBranch);
+        if (ours == null || theirs == null || Diff.isBinary(ours) || Diff.isBinary(theirs))
+            return new Content(wholeConflict(ours, theirs), true);
+        byte[] base = inSplit == null ? new byte[0] : BlobStore.read(inSplit);
+        if (Diff.isBinary(base)) return new Content(wholeConflict(ours, theirs), true);
+        return mergeLines(base, ours, theirs);
+    }
+
+    /**
+     * Return OURS and THEIRS merged line by line, given BASE, the content they were both changed from
+     */
+    static Content mergeLines(byte[] base, byte[] ours, byte[] theirs) {
+        List<String> baseLines = Diff.lines(base), ourLines = Diff.lines(ours), theirLines = Diff.lines(theirs);
+        int[][] sides = Diff.intern(baseLines, ourLines, theirLines);
+        List<Diff.Hunk> ourHunks = Diff.diff(sides[0], sides[1]), theirHunks = Diff.diff(sides[0], sides[2]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(ours.length, theirs.length));
+        int conflicts = 0, basePosition = 0, i = 0, j = 0;
+        // lines each side has added, less those it removed, before the current position
+        int ourShift = 0, theirShift = 0;
+        boolean clean = false;
+        while (i < ourHunks.size() || j < theirHunks.size()) {
+            // the next group of hunks that overlap or touch, on the lines of the base
+            int start = Math.min(i < ourHunks.size() ? ourHunks.get(i).aStart : Integer.MAX_VALUE,
+                    j < theirHunks.size() ? theirHunks.get(j).aStart : Integer.MAX_VALUE);
+            int end = start, ourEnd = ourShift, theirEnd = theirShift;
+            boolean oursChanged = false, theirsChanged = false, grown = true;
+            while (grown) {
+                grown = false;
+                for (; i < ourHunks.size() && ourHunks.get(i).aStart <= end; ++i, grown = true, oursChanged = true) {
+                    Diff.Hunk hunk = ourHunks.get(i);
+                    end = Math.max(end, hunk.aEnd);
+                    ourEnd += hunk.bEnd - hunk.bStart - (hunk.aEnd - hunk.aStart);
+                }
+                for (; j < theirHunks.size() && theirHunks.get(j).aStart <= end; ++j, grown = true, theirsChanged = true) {
+                    Diff.Hunk hunk = theirHunks.get(j);
+                    end = Math.max(end, hunk.aEnd);
+                    theirEnd += hunk.bEnd - hunk.bStart - (hunk.aEnd - hunk.aStart);
+                }
+            }
+            clean |= write(out, baseLines, basePosition, start);
+            List<String> ourPart = ourLines.subList(start + ourShift, end + ourEnd);
+            List<String> theirPart = theirLines.subList(start + theirShift, end + theirEnd);
+            if (!theirsChanged || ourPart.equals(theirPart)) clean |= write(out, ourPart, 0, ourPart.size());
+            else if (!oursChanged) clean |= write(out, theirPart, 0, theirPart.size());
+            else {
+                conflicts += 1;
+                out.writeBytes(OURS_MARKER);
+                writeEnded(out, ourPart);
+                out.writeBytes(SEPARATOR);
+                writeEnded(out, theirPart);
+                out.writeBytes(THEIRS_MARKER);
+            }
+            basePosition = end;
+            ourShift = ourEnd;
+            theirShift = theirEnd;
+        }
+        clean |= write(out, baseLines, basePosition, baseLines.size());
+        if (conflicts == 1 && !clean) return new Content(wholeConflict(ours, theirs), true);
+        return new Content(out.toByteArray(), conflicts > 0);
+    }
+
+    /**
+     * Write lines [from, to) of LINES to OUT, and return true if there were any
+     */
+    private static boolean write(ByteArrayOutputStream out, List<String> lines, int from, int to) {
+        for (int i = from; i < to; ++i) out.writeBytes(lines.get(i).getBytes(StandardCharsets.ISO_8859_1));
+        return from < to;
+    }
+
+    /**
+     * Write LINES to OUT, ending the last with a line feed if it has none, so a marker after it
+     * starts a line of its own
+     */
+    private static void writeEnded(ByteArrayOutputStream out, List<String> lines) {
+        write(out, lines, 0, lines.size());
+        if (!lines.isEmpty() && !lines.get(lines.size() - 1).endsWith("\n")) out.write('\n');
+    }
+
+    /**
+     * Return the content a file in conflict as a whole is left with: OURS and THEIRS, either of
+     * which may be null for a file that isn't there, between conflict markers
+     */
+    private static byte[] wholeConflict(byte[] ours, byte[] theirs) {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.writeBytes(OURS_MARKER);
+        if (ours != null) content.writeBytes(ours);
+        content.writeBytes(SEPARATOR);
+        if (theirs != null) content.writeBytes(theirs);
+        content.writeBytes(WHOLE_THEIRS_MARKER);
+        return content.toByteArray();
+    }
+}
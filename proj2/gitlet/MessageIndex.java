@@ -0,0 +1,194 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static gitlet.Repository.MESSAGE_INDEX_DIR;
+
+/** Commit messages indexed for command find, so a query reads a bucket of the index instead of
+ *  deserializing every commit.
+ *
+ *  Each message is filed in a message bucket named by the hash of the whole message, and each word
+ *  of it in a word bucket named by the hash of the word, as loose objects are named by their ids:
+ *  the first two hex digits name a directory, the rest the file. Messages and words with different
+ *  hashes never share a bucket, so an exact or word query reads only the records of the commits it
+ *  finds. A bucket is a file of records appended as commits are written: commit id (20 bytes),
+ *  key length (4 bytes), key (UTF-8). Words are the runs of letters and digits of a message, in
+ *  lower case.
+ *
+ *  .gitlet/messages/count holds "MIDX", version and the number of commits indexed, written after
+ *  their records. The index only caches what the commits say: when that number isn't the number of
+ *  commits in the commit-graph, e.g. because the index was deleted or a write was interrupted,
+ *  it's rebuilt from the object store.
+ */
+class MessageIndex {
+    static final int VERSION = 2;
+    private static final int MAGIC = 0x4d494458; // "MIDX"
+    private static final File COUNT_FILE = Utils.join(MESSAGE_INDEX_DIR, "count");
+    private static final File WORDS_DIR = Utils.join(MESSAGE_INDEX_DIR, "words");
+
+    /**
+     * Add the message of a commit just written, whose id is ID, unless the index is already out of
+     * date, in which case the next query rebuilds it
+     */
+    static void add(ObjectId id, Commit commit) throws IOException {
+        int indexed = indexedCount();
+        if (indexed < 0 || indexed != CommitGraph.covering().size() - 1) return;
+        index(id, commit.message);
+        writeCount(indexed + 1);
+    }
+
+    /**
+     * Write the index of every commit in the object store, replacing the one on disk
+     */
+    static void rebuild() throws IOException {
+        if (MESSAGE_INDEX_DIR.exists()) Utils.deleteDirectory(MESSAGE_INDEX_DIR);
+        List<ObjectId> ids = ObjectStore.ids(ObjectStore.COMMIT);
+        for (ObjectId id: ids) index(id, Commit.load(id).message);
+        writeCount(ids.size());
+    }
+
+    /** Make sure the index knows every commit, rebuilding it if it doesn't */
+    private static void update() {
+        try {
+            if (indexedCount() != CommitGraph.covering().size()) rebuild();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void index(ObjectId id, String message) throws IOException {
+        append(bucket(MESSAGE_INDEX_DIR, message), id, message);
+        for (String word: words(message)) append(bucket(WORDS_DIR, word), id, word);
+    }
+
+    private static int indexedCount() throws IOException {
+        if (!COUNT_FILE.exists()) return -1;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(COUNT_FILE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return -1;
+            return in.readInt();
+        } catch (EOFException excp) {
+            return -1;
+        }
+    }
+
+    private static void writeCount(int count) throws IOException {
+        MESSAGE_INDEX_DIR.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(COUNT_FILE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+        }
+    }
+
+    // Buckets //////////////////////////////////////////////////////////////////
+
+    /**
+     * Return the distinct words of MESSAGE, in lower case
+     */
+    static Set<String> words(String message) {
+        Set<String> words = new TreeSet<>();
+        for (String word: message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"))
+            if (!word.isEmpty()) words.add(word);
+        return words;
+    }
+
+    private static File bucket(File directory, String key) {
+        String hex = ObjectId.hash(key).toString();
+        return Utils.join(directory, hex.substring(0, 2), hex.substring(2));
+    }
+
+    private static void append(File bucket, ObjectId id, String key) throws IOException {
+        bucket.getParentFile().mkdirs();
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(bucket, true)))) {
+            out.write(id.toBytes());
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Return the records of BUCKET as a map from key to the ids filed under it; a record cut short
+     * by an interrupted append is ignored
+     */
+    private static Map<String, List<ObjectId>> readBucket(File bucket) {
+        Map<String, List<ObjectId>> records = new HashMap<>();
+        if (!bucket.exists()) return records;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bucket)))) {
+            byte[] id = new byte[ObjectId.LENGTH];
+            while (true) {
+                try {
+                    in.readFully(id);
+                    byte[] key = new byte[in.readInt()];
+                    in.readFully(key);
+                    records.computeIfAbsent(new String(key, StandardCharsets.UTF_8), k -> new ArrayList<>())
+                            .add(ObjectId.fromBytes(id));
+                } catch (EOFException excp) {
+                    return records;
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // Queries //////////////////////////////////////////////////////////////////
+
+    /**
+     * Return the ids of the commits whose message is MESSAGE, in sorted order
+     */
+    static Set<ObjectId> withMessage(String message) {
+        update();
+        return new TreeSet<>(readBucket(bucket(MESSAGE_INDEX_DIR, message)).getOrDefault(message, List.of()));
+    }
+
+    /**
+     * Return the ids of the commits whose message has every word of QUERY, in sorted order
+     */
+    static Set<ObjectId> withWords(String query) {
+        update();
+        Set<ObjectId> ids = null;
+        for (String word: words(query)) {
+            Set<ObjectId> withWord = new TreeSet<>(readBucket(bucket(WORDS_DIR, word)).getOrDefault(word, List.of()));
+            if (ids == null) ids = withWord;
+            else ids.retainAll(withWord);
+        }
+        return ids == null ? new TreeSet<>() : ids;
+    }
+
+    /**
+     * Return the ids of the commits whose message contains TEXT, in sorted order.
+     * Every message bucket is read, but no commit is
+     */
+    static Set<ObjectId> containing(String text) {
+        update();
+        Set<ObjectId> ids = new TreeSet<>();
+        File[] directories = MESSAGE_INDEX_DIR.listFiles(File::isDirectory);
+        if (directories == null) return ids;
+        for (File directory: directories) {
+            if (directory.equals(WORDS_DIR)) continue;
+            File[] buckets = directory.listFiles(File::isFile);
+            if (buckets == null) continue;
+            for (File bucket: buckets)
+                for (Map.Entry<String, List<ObjectId>> record: readBucket(bucket).entrySet())
+                    if (record.getKey().contains(text)) ids.addAll(record.getValue());
+        }
+        return ids;
+    }
+}
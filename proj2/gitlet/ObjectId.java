@@ -0,0 +1,130 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/** The SHA-1 id of a commit or of file content, held as its 20 bytes rather than 40 hex characters.
+ *  The bytes are kept in 3 primitive fields, so comparing, hashing and ordering ids touches no
+ *  array; the hex form is only made when an id is printed or names a file. Ids order like their
+ *  hex forms, i.e. as unsigned bytes.
+ */
+final class ObjectId implements Comparable<ObjectId> {
+    /** Number of bytes in an id */
+    static final int LENGTH = 20;
+
+    /** Bytes 0-7, 8-15 and 16-19 of the id, big-endian */
+    private final long first;
+    private final long second;
+    private final int third;
+
+    private ObjectId(long first, long second, int third) {
+        this.first = first;
+        this.second = second;
+        this.third = third;
+    }
+
+    /**
+     * Return the id made of the 20 bytes of BYTES starting at OFFSET
+     */
+    static ObjectId fromBytes(byte[] bytes, int offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, LENGTH);
+        return new ObjectId(buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    static ObjectId fromBytes(byte[] bytes) {
+        return fromBytes(bytes, 0);
+    }
+
+    /**
+     * Return the id at the absolute position AT of BUFFER, e.g. a record of a mapped index
+     */
+    static ObjectId read(ByteBuffer buffer, int at) {
+        return new ObjectId(buffer.getLong(at), buffer.getLong(at + 8), buffer.getInt(at + 16));
+    }
+
+    /**
+     * Return the id written as 40 lowercase hex digits. Throws IllegalArgumentException for anything else
+     */
+    static ObjectId fromHex(String hex) {
+        if (hex.length() != 2 * LENGTH) throw new IllegalArgumentException("not an object id: " + hex);
+        return fromBytes(Utils.hexToBytes(hex));
+    }
+
+    /**
+     * Return true if S is 40 lowercase hex digits
+     */
+    static boolean isId(String s) {
+        if (s.length() != 2 * LENGTH) return false;
+        for (int i = 0; i < s.length(); ++i)
+            if (Utils.hexValue(s.charAt(i)) < 0) return false;
+        return true;
+    }
+
+    /** Return the id of the concatenation of VALS, byte arrays and Strings, as Utils.sha1 */
+    static ObjectId hash(Object... vals) {
+        return fromBytes(Utils.sha1Bytes(vals));
+    }
+
+    /** Return the id of the content of FILE, read in pieces */
+    static ObjectId hashOf(File file) {
+        return fromBytes(Utils.sha1Bytes(file));
+    }
+
+    byte[] toBytes() {
+        return ByteBuffer.allocate(LENGTH).putLong(first).putLong(second).putInt(third).array();
+    }
+
+    /** Write the 20 bytes of this id at the position of BUFFER */
+    ByteBuffer writeTo(ByteBuffer buffer) {
+        return buffer.putLong(first).putLong(second).putInt(third);
+    }
+
+    /** Return the first byte of the id, from 0 to 255 */
+    int firstByte() {
+        return (int) (first >>> 56);
+    }
+
+    /**
+     * Compare this id with the one at the absolute position AT of BUFFER, without reading it into an ObjectId
+     */
+    int compareTo(ByteBuffer buffer, int at) {
+        int cmp = Long.compareUnsigned(first, buffer.getLong(at));
+        if (cmp == 0) cmp = Long.compareUnsigned(second, buffer.getLong(at + 8));
+        if (cmp == 0) cmp = Integer.compareUnsigned(third, buffer.getInt(at + 16));
+        return cmp;
+    }
+
+    /**
+     * Return true if the hex form of this id starts with PREFIX
+     */
+    boolean startsWith(String prefix) {
+        return toString().startsWith(prefix);
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        int cmp = Long.compareUnsigned(first, other.first);
+        if (cmp == 0) cmp = Long.compareUnsigned(second, other.second);
+        if (cmp == 0) cmp = Integer.compareUnsigned(third, other.third);
+        return cmp;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof ObjectId)) return false;
+        ObjectId other = (ObjectId) object;
+        return first == other.first && second == other.second && third == other.third;
+    }
+
+    /** The first 4 bytes of the id: SHA-1 output is uniform, so these are as well spread as any hash */
+    @Override
+    public int hashCode() {
+        return (int) (first >>> 32);
+    }
+
+    /** The 40 hex digits of the id */
+    @Override
+    public String toString() {
+        return Utils.bytesToHex(toBytes());
+    }
+}
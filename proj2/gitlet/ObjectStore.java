@@ -0,0 +1,330 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+
+import static gitlet.Repository.*;
+
+/** The single place objects are read from.
+ *  An object is either loose, in a file of its own under the directory of its type
+ *  (.gitlet/objects for commits, .gitlet/trees for the nodes of their maps of files,
+ *  .gitlet/blobs for file contents, .gitlet/manifests for the lists of chunks of large files),
+ *  or packed into one of the
+ *  packs under .gitlet/pack. Reads check the packs before loose files; command gc moves every
+ *  loose object into a pack, storing versions of a file as deltas against each other.
+ *  In repositories of format 1 and later, loose objects and pack entries are compressed with zlib.
+ */
+class ObjectStore {
+    /** Object types, as recorded in packs */
+    static final int COMMIT = 1;
+    static final int BLOB = 2;
+    /** List of the chunks, stored as blobs, of a large file; see BlobStore */
+    static final int MANIFEST = 3;
+    /** Node of the map of a commit's files; see FileMap */
+    static final int TREE = 4;
+
+    /** Packs of the repository, opened on first use */
+    private static List<PackFile> packs;
+
+    /** Number of bytes read from loose files and packs, before decompression; objects may be read by several threads */
+    static final AtomicLong storedBytesRead = new AtomicLong();
+
+    /**
+     * Forget the packs opened so far, e.g. after the repository in CWD was replaced
+     */
+    static synchronized void reload() {
+        packs = null;
+        FileMap.forgetStored();
+        Repository.forgetFormat();
+    }
+
+    /**
+     * Return the directory loose objects of the given type are written to
+     */
+    static File looseDirectory(int type) {
+        return type == COMMIT ? OBJECTS_DIR : type == BLOB ? BLOBS_DIR : type == TREE ? TREES_DIR : MANIFESTS_DIR;
+    }
+
+    /**
+     * Return the file a loose object is stored in, fanned out by the first 2 characters of its id
+     */
+    static File looseFile(int type, ObjectId id) {
+        String hex = id.toString();
+        return Utils.join(looseDirectory(type), hex.substring(0, 2), hex.substring(2));
+    }
+
+    private static synchronized List<PackFile> packs() {
+        if (packs != null) return packs;
+        packs = new ArrayList<>();
+        List<String> fileNames = Utils.plainFilenamesIn(PACK_DIR);
+        if (fileNames == null) return packs;
+        for (String fileName: fileNames) {
+            File packFile = Utils.join(PACK_DIR, fileName);
+            if (!fileName.endsWith(".pack") || !PackFile.indexFileOf(packFile).exists()) continue;
+            try {
+                packs.add(new PackFile(packFile));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return packs;
+    }
+
+    static boolean contains(int type, ObjectId id) {
+        for (PackFile pack: packs())
+            if (pack.contains(id, type)) return true;
+        return looseFile(type, id).exists();
+    }
+
+    /**
+     * Return content of the object with the given type and id. Throws IllegalArgumentException
+     * if there's no such object
+     */
+    static byte[] read(int type, ObjectId id) {
+        try {
+            for (PackFile pack: packs()) {
+                byte[] content = pack.read(id, type);
+                if (content != null) return content;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] stored = Utils.readContents(looseFile(type, id));
+        storedBytesRead.addAndGet(stored.length);
+        return Repository.compressesObjects() ? Utils.decompress(stored) : stored;
+    }
+
+    /**
+     * Return the loose file of the given object if it holds the object's content as is, which it
+     * does unless the repository compresses objects, or null if there's none
+     */
+    static File plainLooseFile(int type, ObjectId id) {
+        if (Repository.compressesObjects()) return null;
+        File file = looseFile(type, id);
+        return file.exists() ? file : null;
+    }
+
+    /**
+     * Write the content of the object with the given type and id to TARGET, replacing its content.
+     * A loose file holding the content as is is copied with FileChannel.transferTo, so the content
+     * never passes through the heap
+     */
+    static void copyTo(int type, ObjectId id, File target) throws IOException {
+        File plain = plainLooseFile(type, id);
+        if (plain == null) {
+            Utils.writeContents(target, (Object) read(type, id));
+            return;
+        }
+        try (FileChannel in = FileChannel.open(plain.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            for (long position = 0; position < size; )
+                position += in.transferTo(position, size - position, out);
+            storedBytesRead.addAndGet(size);
+        }
+    }
+
+    /**
+     * Write the object with the given type, id and content as a loose file, compressed if the
+     * repository compresses objects. Does nothing if the file already exists
+     */
+    static void writeLoose(int type, ObjectId id, byte[] content) throws IOException {
+        writeLoose(type, id, new ByteArrayInputStream(content));
+    }
+
+    /**
+     * Write the object with the given type and id as a loose file, streaming its content from SOURCE
+     */
+    static void writeLoose(int type, ObjectId id, File source) throws IOException {
+        try (InputStream in = new FileInputStream(source)) {
+            writeLoose(type, id, in);
+        }
+    }
+
+    private static void writeLoose(int type, ObjectId id, InputStream content) throws IOException {
+        File file = looseFile(type, id);
+        if (file.exists()) return;
+        // write next to the object and rename, so a half-written object is never taken as already stored
+        file.getParentFile().mkdirs();
+        File temp = Utils.join(file.getParentFile(), file.getName() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        if (Repository.compressesObjects()) out = new DeflaterOutputStream(out);
+        try (OutputStream stored = out) {
+            content.transferTo(stored);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Return ids of all objects of the given type, packed or loose, in id order
+     */
+    static List<ObjectId> ids(int type) {
+        TreeSet<ObjectId> ids = new TreeSet<>();
+        for (PackFile pack: packs()) ids.addAll(pack.ids(type));
+        ids.addAll(looseIDs(type, ""));
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Return ids of the objects of the given type that start with the hex PREFIX, in id order
+     */
+    static List<ObjectId> idsWithPrefix(int type, String prefix) {
+        TreeSet<ObjectId> ids = new TreeSet<>();
+        if (!prefix.matches("[0-9a-f]*")) return new ArrayList<>();
+        for (PackFile pack: packs()) ids.addAll(pack.idsWithPrefix(prefix, type));
+        ids.addAll(looseIDs(type, prefix));
+        return new ArrayList<>(ids);
+    }
+
+    /**
+     * Return ids of the loose objects of the given type starting with PREFIX;
+     * only the fan-out directory of the prefix is listed when it's known
+     */
+    private static List<ObjectId> looseIDs(int type, String prefix) {
+        List<ObjectId> ids = new ArrayList<>();
+        File directory = looseDirectory(type);
+        List<String> directoryNames;
+        if (prefix.length() >= 2) directoryNames = List.of(prefix.substring(0, 2));
+        else directoryNames = Utils.directoriesNamesIn(directory);
+        if (directoryNames == null) return ids;
+        for (String directoryName: directoryNames) {
+            List<String> fileNames = Utils.plainFilenamesIn(Utils.join(directory, directoryName));
+            if (fileNames == null) continue;
+            for (String fileName: fileNames) {
+                String id = directoryName + fileName;
+                if (ObjectId.isId(id) && id.startsWith(prefix)) ids.add(ObjectId.fromHex(id));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Move every object, loose or in an older pack, into a single new pack,
+     * then delete the loose files and older packs it replaces
+     */
+    static void repack() throws IOException {
+        List<ObjectId> commitIDs = ids(COMMIT), treeIDs = ids(TREE), blobIDs = ids(BLOB), manifestIDs = ids(MANIFEST);
+        if (commitIDs.isEmpty() && treeIDs.isEmpty() && blobIDs.isEmpty() && manifestIDs.isEmpty()) return;
+
+        // commits and their trees go first, so walking history reads one contiguous region of the pack
+        PackFile.Writer writer = new PackFile.Writer(PACK_DIR, Repository.compressesObjects());
+        for (ObjectId id: commitIDs) writer.add(id, COMMIT, read(COMMIT, id));
+        for (ObjectId id: treeIDs) writer.add(id, TREE, read(TREE, id));
+        for (ObjectId id: manifestIDs) writer.add(id, MANIFEST, read(MANIFEST, id));
+        writeBlobsWithDeltas(writer, orderBlobsForDeltas(commitIDs, blobIDs));
+        File newPack = writer.finish();
+
+        for (PackFile pack: packs()) {
+            pack.close();
+            if (pack.packFile.equals(newPack)) continue;
+            PackFile.indexFileOf(pack.packFile).delete();
+            pack.packFile.delete();
+        }
+        packs = null;
+        deleteLooseObjects(COMMIT);
+        deleteLooseObjects(TREE);
+        deleteLooseObjects(BLOB);
+        deleteLooseObjects(MANIFEST);
+    }
+
+    /** Number of preceding blobs tried as the base of each blob's delta */
+    private static final int DELTA_WINDOW = 10;
+    /** Longest chain of deltas that has to be applied to rebuild a blob */
+    private static final int MAX_DELTA_DEPTH = 10;
+
+    /**
+     * Return blob ids ordered so that versions of the same file are next to each other, newest first.
+     * The newest version of a file is then stored whole and older ones as deltas, keeping checkout
+     * of recent commits cheap. Chunks of large files, which commits don't name, come last
+     */
+    private static List<ObjectId> orderBlobsForDeltas(List<ObjectId> commitIDs, List<ObjectId> blobIDs) {
+        List<Commit> commits = new ArrayList<>();
+        for (ObjectId id: commitIDs) commits.add(Commit.load(id));
+        commits.sort((a, b) -> b.time.compareTo(a.time));
+
+        Set<ObjectId> blobs = new HashSet<>(blobIDs);
+        Map<String, List<ObjectId>> versionsOfFile = new TreeMap<>();
+        Set<ObjectId> seen = new HashSet<>();
+        for (Commit commit: commits)
+            for (Map.Entry<String, ObjectId> entry: commit.fileToContent.entrySet())
+                if (blobs.contains(entry.getValue()) && seen.add(entry.getValue()))
+                    versionsOfFile.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(entry.getValue());
+
+        List<ObjectId> order = new ArrayList<>();
+        for (List<ObjectId> versions: versionsOfFile.values()) order.addAll(versions);
+        // chunks, and blobs only ever staged, never committed
+        for (ObjectId id: blobIDs)
+            if (!seen.contains(id)) order.add(id);
+        return order;
+    }
+
+    /**
+     * Write the blobs in the given order, each as a delta against whichever of the previous
+     * DELTA_WINDOW blobs gives the smallest one, or whole if no delta is small enough
+     */
+    private static void writeBlobsWithDeltas(PackFile.Writer writer, List<ObjectId> order) throws IOException {
+        Deque<ObjectId> windowIDs = new ArrayDeque<>();
+        Deque<byte[]> windowContents = new ArrayDeque<>();
+        Map<ObjectId, Integer> depth = new HashMap<>();
+        for (ObjectId id: order) {
+            byte[] content = read(BLOB, id);
+            ObjectId bestBase = null;
+            byte[] bestDelta = null;
+            Iterator<ObjectId> ids = windowIDs.iterator();
+            for (byte[] candidate: windowContents) {
+                ObjectId candidateID = ids.next();
+                if (depth.get(candidateID) >= MAX_DELTA_DEPTH) continue;
+                byte[] delta = Delta.create(candidate, content);
+                if (Delta.isWorthwhile(delta, content) && (bestDelta == null || delta.length < bestDelta.length)) {
+                    bestBase = candidateID;
+                    bestDelta = delta;
+                }
+            }
+
+            if (bestDelta == null) {
+                writer.add(id, BLOB, content);
+                depth.put(id, 0);
+            } else {
+                writer.addDelta(id, BLOB, bestBase, bestDelta);
+                depth.put(id, depth.get(bestBase) + 1);
+            }
+            windowIDs.addFirst(id);
+            windowContents.addFirst(content);
+            if (windowIDs.size() > DELTA_WINDOW) {
+                windowIDs.removeLast();
+                windowContents.removeLast();
+            }
+        }
+    }
+
+    private static void deleteLooseObjects(int type) {
+        File directory = looseDirectory(type);
+        List<String> directoryNames = Utils.directoriesNamesIn(directory);
+        if (directoryNames == null) return;
+        for (String directoryName: directoryNames)
+            Utils.deleteDirectory(Utils.join(directory, directoryName));
+    }
+}
@@ -0,0 +1,328 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Many objects concatenated into one .pack file, with a sorted .idx file to find them.
+ *  The index is memory-mapped and binary searched, so looking up an object touches a few pages
+ *  of the index and then reads the object with one positioned read of the pack, instead of
+ *  opening a loose file of its own.
+ *
+ *  .pack: "PACK", version, object count, then per object: kind (1 byte), length (4 bytes), content
+ *  .idx:  "PIDX", version, object count, a fan-out table whose entry b counts the objects with
+ *         first id byte <= b, then one fixed-width record per object in id order:
+ *         id (20 bytes), kind (1 byte), offset of the content in the pack (8 bytes), length (4 bytes)
+ *
+ *  The kind of an object is its type, with the DELTA bit set when the content stored is the id of
+ *  a base object in the same pack followed by a Delta that rebuilds the object from that base,
+ *  and the DEFLATED bit set when the content stored is that content compressed with zlib.
+ *  Version 1 packs, written before deltas were introduced, are read the same way.
+ */
+class PackFile {
+    static final int VERSION = 2;
+    /** Set in the kind of an object stored as a delta */
+    static final int DELTA = 0x40;
+    /** Set in the kind of an object stored compressed */
+    static final int DEFLATED = 0x20;
+    private static final int PACK_MAGIC = 0x5041434b; // "PACK"
+    private static final int INDEX_MAGIC = 0x50494458; // "PIDX"
+    private static final int HEADER_SIZE = 12;
+    private static final int FANOUT_SIZE = 256 * 4;
+    private static final int ID_LENGTH = 20;
+    private static final int RECORD_SIZE = ID_LENGTH + 1 + 8 + 4;
+
+    /** The .pack file holding object contents */
+    final File packFile;
+    /** The .idx file, mapped read-only */
+    private final MappedByteBuffer index;
+    private final int count;
+    /** Channel on the .pack file, opened on the first read */
+    private FileChannel data;
+    /** Objects recently rebuilt as bases of deltas */
+    private final BaseCache bases = new BaseCache();
+
+    PackFile(File packFile) throws IOException {
+        this.packFile = packFile;
+        try (FileChannel channel = FileChannel.open(indexFileOf(packFile).toPath())) {
+            index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) < 1 || index.getInt(4) > VERSION)
+            throw Utils.error("Bad pack index %s", indexFileOf(packFile).getName());
+        count = index.getInt(8);
+    }
+
+    static File indexFileOf(File packFile) {
+        String name = packFile.getName();
+        return Utils.join(packFile.getParentFile(), name.substring(0, name.length() - ".pack".length()) + ".idx");
+    }
+
+    int size() {
+        return count;
+    }
+
+    boolean contains(ObjectId id, int type) {
+        return find(id, type) >= 0;
+    }
+
+    /**
+     * Return content of the object with the given id and type, or null if it's not in this pack.
+     * Synchronized, since the cache of delta bases is shared by all readers
+     */
+    synchronized byte[] read(ObjectId id, int type) throws IOException {
+        int record = find(id, type);
+        if (record < 0) return null;
+
+        // follow the chain of deltas down to a whole object, or to a base that's still cached
+        Deque<byte[]> deltas = new ArrayDeque<>();
+        Deque<ObjectId> baseIDs = new ArrayDeque<>();
+        ObjectId wanted = id;
+        byte[] content;
+        while ((content = bases.get(wanted)) == null) {
+            byte[] stored = readData(record);
+            if ((kindAt(record) & DELTA) == 0) {
+                content = stored;
+                break;
+            }
+            wanted = ObjectId.fromBytes(stored);
+            deltas.push(Arrays.copyOfRange(stored, ID_LENGTH, stored.length));
+            baseIDs.push(wanted);
+            record = find(wanted, type);
+            if (record < 0) throw Utils.error("Missing delta base %s in pack %s", wanted, packFile.getName());
+        }
+
+        // then apply the deltas back up the chain, keeping every base rebuilt on the way
+        while (!deltas.isEmpty()) {
+            bases.put(baseIDs.pop(), content);
+            content = Delta.apply(content, deltas.pop());
+        }
+        return content;
+    }
+
+    private byte[] readData(int record) throws IOException {
+        int at = recordPosition(record);
+        byte[] stored = readData(index.getLong(at + ID_LENGTH + 1), index.getInt(at + ID_LENGTH + 1 + 8));
+        return (kindAt(record) & DEFLATED) == 0 ? stored : Utils.decompress(stored);
+    }
+
+    private byte[] readData(long offset, int length) throws IOException {
+        if (data == null) data = FileChannel.open(packFile.toPath());
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, offset + buffer.position()) < 0)
+                throw Utils.error("Truncated pack %s", packFile.getName());
+        }
+        ObjectStore.storedBytesRead.addAndGet(length);
+        return buffer.array();
+    }
+
+    /**
+     * Return ids of all objects of the given type, in id order
+     */
+    List<ObjectId> ids(int type) {
+        List<ObjectId> ids = new ArrayList<>();
+        for (int record = 0; record < count; ++record)
+            if (typeAt(record) == type) ids.add(idAt(record));
+        return ids;
+    }
+
+    /**
+     * Return ids of the objects of the given type that start with the given hex prefix, in id order
+     */
+    List<ObjectId> idsWithPrefix(String prefix, int type) {
+        List<ObjectId> ids = new ArrayList<>();
+        StringBuilder padded = new StringBuilder(prefix);
+        while (padded.length() < 2 * ID_LENGTH) padded.append('0');
+        for (int record = lowerBound(ObjectId.fromHex(padded.toString())); record < count; ++record) {
+            ObjectId id = idAt(record);
+            if (!id.startsWith(prefix)) break;
+            if (typeAt(record) == type) ids.add(id);
+        }
+        return ids;
+    }
+
+    /** Release the pack so that it can be deleted */
+    void close() throws IOException {
+        if (data != null) data.close();
+        data = null;
+    }
+
+    // Binary search over the mapped index /////////////////////////////////////
+
+    private int recordPosition(int record) {
+        return HEADER_SIZE + FANOUT_SIZE + record * RECORD_SIZE;
+    }
+
+    private int kindAt(int record) {
+        return index.get(recordPosition(record) + ID_LENGTH);
+    }
+
+    private int typeAt(int record) {
+        return kindAt(record) & ~(DELTA | DEFLATED);
+    }
+
+    private ObjectId idAt(int record) {
+        return ObjectId.read(index, recordPosition(record));
+    }
+
+    private int compareIdAt(int record, ObjectId id) {
+        return -id.compareTo(index, recordPosition(record));
+    }
+
+    /**
+     * Return the first record whose id is not less than the given one;
+     * the fan-out table narrows the search to the records sharing its first byte
+     */
+    private int lowerBound(ObjectId id) {
+        int first = id.firstByte();
+        int low = first == 0 ? 0 : index.getInt(HEADER_SIZE + (first - 1) * 4);
+        int high = index.getInt(HEADER_SIZE + first * 4);
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareIdAt(mid, id) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private int find(ObjectId id, int type) {
+        for (int record = lowerBound(id); record < count && compareIdAt(record, id) == 0; ++record)
+            if (typeAt(record) == type) return record;
+        return -1;
+    }
+
+    // Writing //////////////////////////////////////////////////////////////////
+
+    /** Writes a new pack, one object at a time, and its index once all objects are in */
+    static class Writer {
+        private final File directory;
+        private final File temporaryPack;
+        private final DataOutputStream out;
+        private final List<byte[]> records = new ArrayList<>();
+        private final boolean compress;
+        private long offset;
+
+        /**
+         * Start a pack in DIRECTORY, whose entries are compressed if COMPRESS is true
+         */
+        Writer(File directory, boolean compress) throws IOException {
+            this.directory = directory;
+            this.compress = compress;
+            directory.mkdirs();
+            temporaryPack = File.createTempFile("tmp-", ".pack", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryPack)));
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(0); // object count, filled in by finish
+            offset = HEADER_SIZE;
+        }
+
+        void add(ObjectId id, int type, byte[] content) throws IOException {
+            addEntry(id, type, content);
+        }
+
+        /**
+         * Add the object with the given id and type as a delta against the object BASEID,
+         * which must be in the same pack
+         */
+        void addDelta(ObjectId id, int type, ObjectId baseID, byte[] delta) throws IOException {
+            byte[] content = new byte[ID_LENGTH + delta.length];
+            System.arraycopy(baseID.toBytes(), 0, content, 0, ID_LENGTH);
+            System.arraycopy(delta, 0, content, ID_LENGTH, delta.length);
+            addEntry(id, type | DELTA, content);
+        }
+
+        private void addEntry(ObjectId id, int kind, byte[] content) throws IOException {
+            if (compress) {
+                content = Utils.compress(content);
+                kind |= DEFLATED;
+            }
+            out.writeByte(kind);
+            out.writeInt(content.length);
+            out.write(content);
+            offset += 1 + 4;
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            id.writeTo(record).put((byte) kind).putLong(offset).putInt(content.length);
+            records.add(record.array());
+            offset += content.length;
+        }
+
+        /**
+         * Write the index and move both files to their final names, which are derived from the ids
+         * they hold; return the new pack file
+         */
+        File finish() throws IOException {
+            out.close();
+            try (RandomAccessFile pack = new RandomAccessFile(temporaryPack, "rw")) {
+                pack.seek(8);
+                pack.writeInt(records.size());
+            }
+
+            records.sort((a, b) -> Arrays.compareUnsigned(a, 0, RECORD_SIZE, b, 0, RECORD_SIZE));
+            int[] fanout = new int[256];
+            List<Object> ids = new ArrayList<>();
+            for (byte[] record : records) {
+                fanout[record[0] & 0xff] += 1;
+                ids.add(Arrays.copyOf(record, ID_LENGTH + 1));
+            }
+            for (int i = 1; i < 256; ++i) fanout[i] += fanout[i - 1];
+
+            String name = "pack-" + Utils.sha1(ids);
+            File temporaryIndex = File.createTempFile("tmp-", ".idx", directory);
+            try (DataOutputStream index = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temporaryIndex)))) {
+                index.writeInt(INDEX_MAGIC);
+                index.writeInt(VERSION);
+                index.writeInt(records.size());
+                for (int entry : fanout) index.writeInt(entry);
+                for (byte[] record : records) index.write(record);
+            }
+
+            // the pack goes first: a pack without an index is ignored, an index without a pack is not
+            File packFile = Utils.join(directory, name + ".pack");
+            Files.move(temporaryPack.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporaryIndex.toPath(), indexFileOf(packFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return packFile;
+        }
+    }
+
+    /** Least recently used objects rebuilt while resolving deltas, up to a total size */
+    private static class BaseCache extends LinkedHashMap<ObjectId, byte[]> {
+        private static final long CAPACITY = 16 << 20;
+        private long size;
+
+        BaseCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        public byte[] put(ObjectId id, byte[] content) {
+            byte[] previous = super.put(id, content);
+            size += content.length - (previous == null ? 0 : previous.length);
+            return previous;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, byte[]> eldest) {
+            if (size <= CAPACITY || size() == 1) return false;
+            size -= eldest.getValue().length;
+            return true;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.File;
+import java.io.IOException;
 import static gitlet.Utils.*;
 
 // TODO: any imports you need here
@@ -26,12 +27,101 @@ public class Repository {
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     /** The .gitlet/objects directory, which stores commit info. */
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
-    /** The .gitlet/backup directory, which stores version of file in each commit. */
-    public static final File BACKUP_DIR = join(GITLET_DIR, "backup");
+    /** The .gitlet/trees directory, which stores the nodes of the maps of files of commits, shared between commits. */
+    public static final File TREES_DIR = join(GITLET_DIR, "trees");
+    /** The .gitlet/blobs directory, which stores each version of file content once, named by its SHA. */
+    public static final File BLOBS_DIR = join(GITLET_DIR, "blobs");
+    /** The .gitlet/manifests directory, which stores the lists of chunks that large files are stored as. */
+    public static final File MANIFESTS_DIR = join(GITLET_DIR, "manifests");
+    /** The .gitlet/pack directory, which stores packs of objects made by command gc, with their indexes. */
+    public static final File PACK_DIR = join(GITLET_DIR, "pack");
     /** The .gitlet/commit_tree file, which stores head, master, and other branches */
     public static final File COMMIT_TREE = join(GITLET_DIR, "commit_tree");
-    /** The .gitlet/staging_area file, which stores files staged for addition/removal */
-    public static final File STAGING_AREA = join(".gitlet", "staging_area");
+    /** The .gitlet/commit-graph file, which stores the parents and generation of every commit by position */
+    public static final File COMMIT_GRAPH = join(GITLET_DIR, "commit-graph");
+    /** The .gitlet/commit-index file, which stores the sorted ids of all commits for resolving abbreviated ids */
+    public static final File COMMIT_INDEX = join(GITLET_DIR, "commit-index");
+    /** The .gitlet/messages directory, which stores commit ids by message and by word of their messages, for find */
+    public static final File MESSAGE_INDEX_DIR = join(GITLET_DIR, "messages");
+    /** The .gitlet/index file, which stores files staged for addition/removal and what's known of working files */
+    public static final File INDEX_FILE = join(GITLET_DIR, "index");
+    /** The .gitlet/staging_area file, which stored the staging area with Java serialization before the
+     *  index replaced it; only read to upgrade a repository made by the original gitlet */
+    public static final File LEGACY_STAGING_AREA = join(GITLET_DIR, "staging_area");
+    /** The .gitlet/backup directory, which stored a copy of each file a commit changed before the
+     *  blob store replaced it; only read to upgrade a repository made by the original gitlet */
+    public static final File LEGACY_BACKUP_DIR = join(GITLET_DIR, "backup");
+    /** The .gitlet/upgrading file, which exists while a repository made by the original gitlet is upgraded */
+    public static final File UPGRADE_MARKER = join(GITLET_DIR, "upgrading");
+
+    /** The .gitlet/format file, which stores the version of the repository's on-disk format.
+     *  Repositories made by the original gitlet have no such file. They store commits, the commit
+     *  tree and the staging area with Java serialization, and are upgraded to FORMAT_VERSION by the
+     *  first command run in them (see LegacyRepository). Commands fail with UNSUPPORTED_FORMAT in
+     *  any other repository without the file, and in those of a format newer than FORMAT_VERSION. */
+    public static final File FORMAT_FILE = join(GITLET_DIR, "format");
+
+    /** Format written by init, unless the gitlet.format system property asks for another:
+     *  0 stores objects as they are, 1 compresses loose objects and pack entries with zlib. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** Format of the repository in CWD, read on first use */
+    private static int format = -1;
+
+    /** What a command prints when the repository in CWD was written in a format it can't read */
+    static final String UNSUPPORTED_FORMAT =
+            "Unsupported repository format: this repository was made by another version of gitlet.";
+
+    /** Abort the running command, as the repository in CWD is in a format this gitlet can't read. */
+    static void unsupportedFormat() {
+        GitletException.handleException(UNSUPPORTED_FORMAT);
+    }
+
+    /** Return the format version of the repository in CWD, failing if it's one this gitlet can't read.
+     *  A repository made by the original gitlet is upgraded first. */
+    static int formatVersion() {
+        if (format < 0) {
+            if (!FORMAT_FILE.exists()) {
+                if (!GITLET_DIR.exists()) return 0;
+                if (!LegacyRepository.isLegacy()) unsupportedFormat();
+                // the upgrade writes objects as the format it upgrades to stores them
+                format = FORMAT_VERSION;
+                try {
+                    LegacyRepository.upgrade();
+                } catch (IOException | RuntimeException excp) {
+                    format = -1;
+                    if (excp instanceof GitletException) throw (GitletException) excp;
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                return format;
+            }
+            int version = -1;
+            try {
+                version = Integer.parseInt(readContentsAsString(FORMAT_FILE).trim());
+            } catch (NumberFormatException excp) {
+                unsupportedFormat();
+            }
+            if (version < 0 || version > FORMAT_VERSION) unsupportedFormat();
+            format = version;
+        }
+        return format;
+    }
+
+    /** Forget the format read so far, e.g. after the repository in CWD was replaced. */
+    static void forgetFormat() {
+        format = -1;
+    }
+
+    /** Record VERSION as the format of a new repository in CWD. */
+    static void writeFormatVersion(int version) {
+        writeContents(FORMAT_FILE, version + "\n");
+        format = version;
+    }
+
+    /** Return true if objects of the repository in CWD are compressed. */
+    static boolean compressesObjects() {
+        return formatVersion() >= 1;
+    }
 
     /** 3 files used in test code **/
     public static final File TEST_FILE_HELLO = join(CWD, "hello.txt");
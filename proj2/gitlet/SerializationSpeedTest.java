@@ -0,0 +1,146 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static gitlet.Repository.*;
+
+/** Compares the binary encoding of commits with the Java serialization the original gitlet stored
+ *  them in. For commits of a growing number of files, each changing a few files of the one before,
+ *  reports the bytes each commit adds to the repository and the time taken to read one back with
+ *  all its files, in each format.
+ *
+ *  A binary commit is written with Commit.encode and read with Commit.decode, its bytes being its
+ *  own and those of the FileMap nodes it stored that the commit before didn't have; its files are
+ *  then all visited, the nodes coming from FileMap's cache as they do when a session reads commits
+ *  sharing them. A serialized commit is a SerializedCommit, which has the fields of the original
+ *  Commit with the parent as its id, holding all the commit's files.
+ *
+ *  Usage, from an empty scratch directory: java gitlet.SerializationSpeedTest [COMMITS]
+ */
+public class SerializationSpeedTest {
+    private static final int ROUNDS = 20;
+    /** Files each commit changes */
+    private static final int CHANGES = 3;
+
+    /** A commit as the original gitlet serialized it, less the parent commits it embedded */
+    private static class SerializedCommit implements Serializable {
+        Map<String, String> fileToContent;
+        String parent;
+        String message;
+        Date time;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        if (GITLET_DIR.exists()) {
+            System.out.println("Run this from an empty scratch directory.");
+            return;
+        }
+        Commands.init(new String[]{"init"});
+
+        System.out.printf("%d commits per size%n", commits);
+        System.out.printf("%7s %14s %14s %14s %14s%n", "files", "java bytes", "binary bytes",
+                "java us/read", "binary us/read");
+        try {
+            for (int files: new int[]{1, 10, 100, 1000, 10000})
+                report(files, Math.max(1, commits * 10 / Math.max(10, files)));
+        } finally {
+            Utils.deleteDirectory(GITLET_DIR);
+        }
+    }
+
+    /**
+     * Make a history of COMMITS commits of FILES files, and report the bytes and read times of
+     * its commits in each format
+     */
+    private static void report(int files, int commits) throws IOException {
+        Random random = new Random(61);
+        List<byte[]> serialized = new ArrayList<>(), encoded = new ArrayList<>();
+        long serializedBytes = 0, encodedBytes = 0;
+        Set<ObjectId> trees = new HashSet<>(ObjectStore.ids(ObjectStore.TREE));
+        Commit parent = null;
+        for (int c = 0; c < commits; ++c) {
+            Commit commit = makeCommit(random, parent, files, c);
+            commit.fileToContent.store();
+            encoded.add(commit.encode());
+            encodedBytes += encoded.get(encoded.size() - 1).length;
+            for (ObjectId id: ObjectStore.ids(ObjectStore.TREE))
+                if (trees.add(id)) encodedBytes += ObjectStore.read(ObjectStore.TREE, id).length;
+            serialized.add(Utils.serialize(asSerialized(commit)));
+            serializedBytes += serialized.get(serialized.size() - 1).length;
+            parent = commit;
+        }
+
+        // read everything a few times, keeping the best round, so the JIT has warmed up
+        double serializedTime = Double.MAX_VALUE, encodedTime = Double.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; ++round) {
+            long start = System.nanoTime();
+            for (byte[] bytes: serialized) deserialize(bytes).fileToContent.size();
+            serializedTime = Math.min(serializedTime, (System.nanoTime() - start) / 1e3 / commits);
+            start = System.nanoTime();
+            for (byte[] bytes: encoded) {
+                for (Map.Entry<String, ObjectId> file: Commit.decode(bytes).fileToContent.entrySet()) file.getValue();
+            }
+            encodedTime = Math.min(encodedTime, (System.nanoTime() - start) / 1e3 / commits);
+        }
+        System.out.printf("%7d %14d %14d %14.1f %14.1f%n", files, serializedBytes / commits,
+                encodedBytes / commits, serializedTime, encodedTime);
+    }
+
+    /**
+     * Return commit C of a history of FILES files, with made-up paths and SHAs laid out like a
+     * source tree: all of them for the first commit, and CHANGES of those of PARENT after that
+     */
+    private static Commit makeCommit(Random random, Commit parent, int files, int c) {
+        Commit commit = new Commit(null, "commit " + c + ": change a few files", new Date(1600000000000L + c * 60000L));
+        if (parent == null) {
+            for (int i = 0; i < files; ++i) commit.fileToContent = commit.fileToContent.with(path(i), randomId(random));
+            return commit;
+        }
+        commit.parentID = parent.getID();
+        commit.fileToContent = parent.fileToContent;
+        for (int i = 0; i < Math.min(CHANGES, files); ++i)
+            commit.fileToContent = commit.fileToContent.with(path(random.nextInt(files)), randomId(random));
+        return commit;
+    }
+
+    private static String path(int i) {
+        return "src/main/java/gitlet/module" + i / 50 + "/File" + i + ".java";
+    }
+
+    private static SerializedCommit asSerialized(Commit commit) {
+        SerializedCommit result = new SerializedCommit();
+        result.fileToContent = new HashMap<>();
+        for (Map.Entry<String, ObjectId> file: commit.fileToContent.entrySet())
+            result.fileToContent.put(file.getKey(), file.getValue().toString());
+        result.parent = commit.parentID == null ? null : commit.parentID.toString();
+        result.message = commit.message;
+        result.time = commit.time;
+        return result;
+    }
+
+    private static SerializedCommit deserialize(byte[] bytes) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (SerializedCommit) in.readObject();
+        } catch (ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static ObjectId randomId(Random random) {
+        byte[] bytes = new byte[ObjectId.LENGTH];
+        random.nextBytes(bytes);
+        return ObjectId.fromBytes(bytes);
+    }
+}
@@ -0,0 +1,155 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Repository state shared by all the steps of a command, so that each is read from disk once.
+ *  The commit tree and the staging area are read on first use and kept for the rest of the
+ *  command; steps that change them only mark them changed, and they're written once, when the
+ *  command ends. A command that fails half-way thus leaves both as they were.
+ *
+ *  Commits are kept in an LRU cache bounded by CACHE_CAPACITY, counting each commit as 1 + its
+ *  number of files. A commit never changes once written, so the cache is kept across commands.
+ */
+class Session {
+    /** Most commits, weighted by their number of files, kept in the cache */
+    static final int CACHE_CAPACITY = 1 << 16;
+
+    private static final Session current = new Session();
+
+    private CommitTree commitTree;
+    private boolean commitTreeChanged;
+    private Stage stage;
+    private boolean stageChanged;
+    /** Whether end keeps the commit tree and staging area, and what changed them, for the next command */
+    private boolean deferWrites;
+
+    private final CommitCache commits = new CommitCache();
+    /** Commits found in the cache, and commits that had to be read */
+    private long hits, misses;
+
+    /** Return the session of the running command */
+    static Session current() {
+        return current;
+    }
+
+    // Commits //////////////////////////////////////////////////////////////////
+
+    /**
+     * Return the commit with the given id, from the cache if it's there
+     */
+    Commit commit(ObjectId id) {
+        Commit commit = commits.get(id);
+        if (commit != null) {
+            hits += 1;
+            return commit;
+        }
+        misses += 1;
+        commit = Commit.load(id);
+        commits.put(id, commit);
+        return commit;
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    /** Number of commits in the cache */
+    int cachedCommits() {
+        return commits.size();
+    }
+
+    private static class CommitCache extends LinkedHashMap<ObjectId, Commit> {
+        private long size;
+
+        CommitCache() {
+            super(16, 0.75f, true);
+        }
+
+        private static int weight(Commit commit) {
+            return 1 + commit.fileToContent.size();
+        }
+
+        @Override
+        public Commit put(ObjectId id, Commit commit) {
+            Commit previous = super.put(id, commit);
+            size += weight(commit) - (previous == null ? 0 : weight(previous));
+            return previous;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Commit> eldest) {
+            if (size <= CACHE_CAPACITY || size() == 1) return false;
+            size -= weight(eldest.getValue());
+            return true;
+        }
+    }
+
+    // Commit tree and staging area /////////////////////////////////////////////
+
+    CommitTree commitTree() {
+        if (commitTree == null) {
+            Repository.formatVersion();
+            commitTree = CommitTree.read();
+        }
+        return commitTree;
+    }
+
+    /** Make COMMITTREE the commit tree, to be written when the command ends */
+    void commitTreeChanged(CommitTree commitTree) {
+        this.commitTree = commitTree;
+        commitTreeChanged = true;
+    }
+
+    Stage stage() {
+        if (stage == null) {
+            Repository.formatVersion();
+            stage = Stage.read();
+        }
+        return stage;
+    }
+
+    /** Make STAGE the staging area, to be written when the command ends */
+    void stageChanged(Stage stage) {
+        this.stage = stage;
+        stageChanged = true;
+    }
+
+    /** Make end keep the commit tree and staging area in memory (or not), until they're flushed */
+    void deferWrites(boolean deferWrites) {
+        this.deferWrites = deferWrites;
+    }
+
+    /**
+     * Write the commit tree and the staging area if they were changed
+     */
+    void flush() {
+        if (commitTreeChanged) commitTree.write();
+        if (stageChanged) stage.write();
+        commitTreeChanged = stageChanged = false;
+    }
+
+    /**
+     * End the running command: write what it changed, and forget the commit tree and staging area,
+     * which the next command reads again in case another process changed them.
+     * Writes deferred by deferWrites are left to the next flush
+     */
+    void end() {
+        if (deferWrites) return;
+        flush();
+        discard();
+    }
+
+    /**
+     * Forget the commit tree and staging area, and any change to them not yet written
+     */
+    void discard() {
+        commitTree = null;
+        stage = null;
+        commitTreeChanged = stageChanged = false;
+    }
+}
@@ -1,25 +1,67 @@
 package gitlet;
 
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
 
-public class Stage implements Serializable {
-    Map<String, String> fileNameToContent; // store mapping from file name to SHA of its content;
+import static gitlet.Repository.INDEX_FILE;
+import static gitlet.Repository.LEGACY_STAGING_AREA;
+
+/** The staging area, stored in the binary index file .gitlet/index. An upgrade (see LegacyRepository)
+ *  replaces the .gitlet/staging_area of the original gitlet with an index; a repository left with
+ *  that file and no index is refused, rather than read as having nothing staged.
+ *  Besides the files staged for addition and removal, the index caches the SHA of each working
+ *  file it has hashed, with the size, modification time and inode the file had then. A file whose
+ *  stat data still matches is not read again to learn its SHA.
+ *
+ *  A file modified within the same clock tick as the index was written can keep its stat data,
+ *  so entries whose modification time isn't older than the index file are "racy": they're dropped
+ *  when the index is written, and hashed again when read from an index written before they were.
+ *
+ *  .gitlet/index: "GIDX", version, entry count, then one entry per file name in sorted order:
+ *      name (modified UTF-8), flags (1 byte),
+ *      if STAGED: SHA of the staged content (20 bytes),
+ *      if CACHED: SHA of the working file (20 bytes), size, modification time in ns, inode (8 bytes each)
+ */
+public class Stage {
+    static final int VERSION = 1;
+    private static final int MAGIC = 0x47494458; // "GIDX"
+    private static final int STAGED = 1, REMOVED = 2, CACHED = 4;
+
+    Map<String, ObjectId> fileNameToContent; // store mapping from file name to SHA of its content;
     Set<String> removalFileSet; // store files to remove in current commit
 
+    /** Stat data and SHA of working files when they were last hashed */
+    private final Map<String, FileStat> stats = new TreeMap<>();
+    /** Modification time of the index when it was read, in ns; cached entries at least this new are racy */
+    private long indexTime = Long.MIN_VALUE;
+    /** Number of files hashed because their cached SHA couldn't be trusted */
+    int filesHashed;
+
     public Stage() {
-        fileNameToContent = new HashMap<>();
-        removalFileSet = new HashSet<>();
+        fileNameToContent = new TreeMap<>();
+        removalFileSet = new TreeSet<>();
     }
 
     boolean hasFile(String fileName) {
         return fileNameToContent.containsKey(fileName);
     }
 
-    void addFile(String fileName, String SHAOfContent) {
+    void addFile(String fileName, ObjectId SHAOfContent) {
         fileNameToContent.put(fileName, SHAOfContent);
     }
 
@@ -35,4 +77,181 @@ public class Stage implements Serializable {
     }
 
     void unremoveFile(String fileName) {removalFileSet.remove(fileName);}
+
+    /**
+     * Unstage everything, keeping what's known about the working files
+     */
+    void clear() {
+        fileNameToContent.clear();
+        removalFileSet.clear();
+    }
+
+    // Working file SHAs ////////////////////////////////////////////////////////
+
+    /**
+     * Return the SHA of the content of the working file FILENAME, which must exist; it's read and
+     * hashed only if its stat data changed since it was last hashed, or the cached entry is racy
+     */
+    ObjectId hashOf(String fileName) {
+        FileStat stat = lookup(fileName);
+        remember(fileName, stat);
+        return stat.SHA;
+    }
+
+    /**
+     * Return the stat data and SHA of the working file FILENAME, hashing it unless the cached entry
+     * can be trusted. Only reads this stage, so it can be called from several threads at once, as
+     * long as no thread changes the stage until they're done
+     */
+    FileStat lookup(String fileName) {
+        File file = Utils.join(Repository.CWD, fileName);
+        FileStat current = FileStat.of(file);
+        FileStat cached = stats.get(fileName);
+        if (cached != null && cached.sameFileAs(current) && cached.mtime < indexTime) return cached;
+
+        // stat before reading, so a change made while hashing shows up as a different mtime next time
+        current.SHA = ObjectId.hashOf(file);
+        return current;
+    }
+
+    /**
+     * Keep STAT, returned by lookup, as what's known about the working file FILENAME
+     */
+    void remember(String fileName, FileStat stat) {
+        if (stats.get(fileName) == stat) return;
+        stats.put(fileName, stat);
+        filesHashed += 1;
+    }
+
+    /**
+     * Remember that the working file FILENAME, just written by gitlet, has content SHA
+     */
+    void recordHash(String fileName, ObjectId SHA) {
+        FileStat current = FileStat.of(Utils.join(Repository.CWD, fileName));
+        current.SHA = SHA;
+        stats.put(fileName, current);
+    }
+
+    /**
+     * Forget the working file FILENAME, which was deleted
+     */
+    void forget(String fileName) {
+        stats.remove(fileName);
+    }
+
+    /** Size, modification time and inode of a working file, with the SHA of its content */
+    static class FileStat {
+        ObjectId SHA;
+        long size, mtime, inode;
+
+        static FileStat of(File file) {
+            FileStat stat = new FileStat();
+            try {
+                try {
+                    Map<String, Object> attributes = Files.readAttributes(file.toPath(), "unix:size,lastModifiedTime,ino");
+                    stat.size = (Long) attributes.get("size");
+                    stat.mtime = ((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+                    stat.inode = (Long) attributes.get("ino");
+                } catch (UnsupportedOperationException excp) {
+                    BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                    stat.size = attributes.size();
+                    stat.mtime = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            return stat;
+        }
+
+        boolean sameFileAs(FileStat other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+
+    // Reading and writing the index ////////////////////////////////////////////
+
+    /**
+     * Return the staging area of the repository in CWD, empty if nothing was ever staged
+     */
+    static Stage read() {
+        Stage stage = new Stage();
+        if (!INDEX_FILE.exists()) {
+            // what an older gitlet staged would be lost if read as an empty stage
+            if (LEGACY_STAGING_AREA.exists()) Repository.unsupportedFormat();
+            return stage;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(INDEX_FILE)))) {
+            stage.indexTime = Files.getLastModifiedTime(INDEX_FILE.toPath()).to(TimeUnit.NANOSECONDS);
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw Utils.error("Bad index %s", INDEX_FILE.getPath());
+            for (int count = in.readInt(); count > 0; --count) {
+                String fileName = in.readUTF();
+                int flags = in.readByte();
+                if ((flags & STAGED) != 0) stage.fileNameToContent.put(fileName, readSHA(in));
+                if ((flags & REMOVED) != 0) stage.removalFileSet.add(fileName);
+                if ((flags & CACHED) != 0) {
+                    FileStat stat = new FileStat();
+                    stat.SHA = readSHA(in);
+                    stat.size = in.readLong();
+                    stat.mtime = in.readLong();
+                    stat.inode = in.readLong();
+                    stage.stats.put(fileName, stat);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return stage;
+    }
+
+    /**
+     * Write this staging area to the index, replacing it in one step. A cached entry whose file was
+     * modified no earlier than the index is written is racy: a later index would be newer than it
+     * and trust it, though the file may have changed again within that tick, so it's dropped
+     */
+    void write() {
+        File temp = Utils.join(INDEX_FILE.getParentFile(), INDEX_FILE.getName() + ".tmp");
+        try {
+            writeTo(temp);
+            long writeTime = Files.getLastModifiedTime(temp.toPath()).to(TimeUnit.NANOSECONDS);
+            // written again without them; the new file is no older, so the rest still aren't racy
+            if (stats.values().removeIf(stat -> stat.mtime >= writeTime)) writeTo(temp);
+            Files.move(temp.toPath(), INDEX_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private void writeTo(File file) throws IOException {
+        Set<String> fileNames = new TreeSet<>(fileNameToContent.keySet());
+        fileNames.addAll(removalFileSet);
+        fileNames.addAll(stats.keySet());
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fileNames.size());
+            for (String fileName: fileNames) {
+                ObjectId staged = fileNameToContent.get(fileName);
+                FileStat stat = stats.get(fileName);
+                out.writeUTF(fileName);
+                out.writeByte((staged != null ? STAGED : 0) | (removalFileSet.contains(fileName) ? REMOVED : 0)
+                        | (stat != null ? CACHED : 0));
+                if (staged != null) out.write(staged.toBytes());
+                if (stat != null) {
+                    out.write(stat.SHA.toBytes());
+                    out.writeLong(stat.size);
+                    out.writeLong(stat.mtime);
+                    out.writeLong(stat.inode);
+                }
+            }
+        }
+    }
+
+    private static ObjectId readSHA(DataInputStream in) throws IOException {
+        byte[] SHA = new byte[ObjectId.LENGTH];
+        in.readFully(SHA);
+        return ObjectId.fromBytes(SHA);
+    }
 }
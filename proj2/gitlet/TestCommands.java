@@ -5,8 +5,18 @@ import static gitlet.Utils.*;
 import static gitlet.Repository.*;
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.io.ObjectStreamField;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.time.ZoneOffset;
@@ -40,10 +50,10 @@ public class TestCommands {
         File commitFile = join(OBJECTS_DIR, "29",
                 "f06e3e5dc29c16ba9188804c697a5069815f53");
         assertTrue(commitFile.exists());
-        Commit initialCommit = readObject(commitFile, Commit.class);
-        CommitTree commitTree = readObject(COMMIT_TREE, CommitTree.class);
-        assertTrue(commitTree.head.equals(initialCommit));
-        assertTrue(commitTree.branches.get("master").equals(initialCommit));
+        Commit initialCommit = Commit.load(ObjectId.fromHex("29f06e3e5dc29c16ba9188804c697a5069815f53"));
+        CommitTree commitTree = CommitTree.read();
+        assertTrue(commitTree.getHead().equals(initialCommit));
+        assertTrue(commitTree.getCommitOfBranch("master").equals(initialCommit));
         System.out.println(initialCommit.time);
     }
 
@@ -60,7 +70,7 @@ public class TestCommands {
 
         String[] args = new String[]{"add", "hello.txt"};
         add(args);
-        Stage stage = readObject(STAGING_AREA, Stage.class);
+        Stage stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 1);
         assertTrue(stage.fileNameToContent.containsKey("hello.txt"));
         assertTrue(stage.removalFileSet.isEmpty());
@@ -81,14 +91,14 @@ public class TestCommands {
 
         String[] args = new String[]{"add", "work.txt"};
         add(args);
-        Stage stage = readObject(STAGING_AREA, Stage.class);
+        Stage stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 2);
 
         args[1] = "hello.txt";
         add(args);
-        stage = readObject(STAGING_AREA, Stage.class);
+        stage = Stage.read();
         assertFalse(stage.fileNameToContent.get("hello.txt").
-                equals("2aae6c35c94fcfb415dbe95f408b9ce91ee846ed"));
+                equals(ObjectId.fromHex("2aae6c35c94fcfb415dbe95f408b9ce91ee846ed")));
 
         System.out.println("hello.txt: " + stage.fileNameToContent.get("hello.txt"));
         System.out.println("work.txt: " + stage.fileNameToContent.get("work.txt"));
@@ -105,17 +115,17 @@ public class TestCommands {
         String[] args = new String[]{"commit", "2nd commit"};
         commit(args);
         // test staging area is cleared
-        Stage stage = readObject(STAGING_AREA, Stage.class);
+        Stage stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 0);
         assertEquals(stage.removalFileSet.size(), 0);
 
         // test the commit records 2 files
-        CommitTree commitTree = readObject(COMMIT_TREE, CommitTree.class);
-        Commit head = commitTree.head, master = commitTree.branches.get("master");
+        CommitTree commitTree = CommitTree.read();
+        Commit head = commitTree.getHead(), master = commitTree.getCommitOfBranch("master");
         assertTrue(head.equals(master));
-        assertEquals(head.fileToCommit.size(), 2);
-        for (String fileName: head.fileToCommit.keySet())
-            assertTrue(head.fileToCommit.get(fileName).equals(head.getSHAHash()));
+        assertEquals(head.fileToContent.size(), 2);
+        for (String fileName: head.fileToContent.keySet())
+            assertTrue(BlobStore.contains(head.getFileContent(fileName)));
     }
 
     @Test
@@ -134,12 +144,12 @@ public class TestCommands {
 
         String[] args = new String[]{"add", "work.txt"};
         add(args);
-        Stage stage = readObject(STAGING_AREA, Stage.class);
+        Stage stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 1);
 
         args[1] = "hello.txt";
         add(args);
-        stage = readObject(STAGING_AREA, Stage.class);
+        stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 2);
     }
 
@@ -153,12 +163,12 @@ public class TestCommands {
         moreTestAdd2();
         appendContents(TEST_FILE_HELLO, "Klay");
 
-        Stage stage = readObject(STAGING_AREA, Stage.class);
+        Stage stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 2);
 
         String[] args = new String[]{"add", "hello.txt"};
         add(args);
-        stage = readObject(STAGING_AREA, Stage.class);
+        stage = Stage.read();
         assertEquals(stage.fileNameToContent.size(), 1);
     }
 
@@ -172,12 +182,12 @@ public class TestCommands {
 
         String[] args = new String[]{"rm", "hello.txt"};
         rm(args);
-        Stage stage = readObject(STAGING_AREA, Stage.class);
+        Stage stage = Stage.read();
         assertEquals(stage.removalFileSet.size(), 1);
 
         args[1] = "work.txt";
         rm(args);
-        stage = readObject(STAGING_AREA, Stage.class);
+        stage = Stage.read();
         assertTrue(stage.fileNameToContent.isEmpty());
     }
 
@@ -192,10 +202,10 @@ public class TestCommands {
         String[] args = new String[]{"commit", "3rd commit"};
         commit(args);
 
-        CommitTree commitTree = readObject(COMMIT_TREE, CommitTree.class);
-        Commit head = commitTree.head, master = commitTree.branches.get("master");
+        CommitTree commitTree = CommitTree.read();
+        Commit head = commitTree.getHead(), master = commitTree.getCommitOfBranch("master");
         assertTrue(head.equals(master));
-        assertEquals(head.fileToCommit.size(), 1);
+        assertEquals(head.fileToContent.size(), 1);
     }
 
     @Test
@@ -256,7 +266,7 @@ public class TestCommands {
 
         String[] args = new String[]{"branch", "1B"};
         branch(args);
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+        CommitTree commitTree = CommitTree.read();
         assertTrue(commitTree.currentBranchName.equals("master"));
         assertEquals(commitTree.branches.size(), 2);
     }
@@ -279,9 +289,9 @@ public class TestCommands {
         add(args);
         args = new String[]{"commit", "4th commit"};
         commit(args);
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
-        assertTrue(commitTree.head.equals(commitTree.branches.get("master")));
-        assertFalse(commitTree.head.equals(commitTree.branches.get("1B")));
+        CommitTree commitTree = CommitTree.read();
+        assertTrue(commitTree.getHead().equals(commitTree.getCommitOfBranch("master")));
+        assertFalse(commitTree.getHead().equals(commitTree.getCommitOfBranch("1B")));
         args = new String[]{"status"};
         status(args);
     }
@@ -296,9 +306,9 @@ public class TestCommands {
 
         String[] args = new String[]{"checkout", "1B"};
         checkout(args); // after this command, only work.txt will be in the directory
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+        CommitTree commitTree = CommitTree.read();
         assertTrue(commitTree.currentBranchName.equals("1B"));
-        assertTrue(commitTree.branches.get("1B").equals(commitTree.head));
+        assertTrue(commitTree.getCommitOfBranch("1B").equals(commitTree.getHead()));
     }
     @Test
     /**
@@ -314,12 +324,12 @@ public class TestCommands {
         add(args);
         args = new String[]{"commit", "5th commit"};
         commit(args);
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
-        assertFalse(commitTree.head.equals(commitTree.branches.get("master")));
-        assertTrue(commitTree.head.equals(commitTree.branches.get("1B")));
-        Commit head = commitTree.head;
-        assertEquals(head.fileToCommit.size(), 1);
-        assertTrue(head.fileToCommit.get("work.txt").equals(head.getSHAHash()));
+        CommitTree commitTree = CommitTree.read();
+        assertFalse(commitTree.getHead().equals(commitTree.getCommitOfBranch("master")));
+        assertTrue(commitTree.getHead().equals(commitTree.getCommitOfBranch("1B")));
+        Commit head = commitTree.getHead();
+        assertEquals(head.fileToContent.size(), 1);
+        assertTrue(BlobStore.contains(head.getFileContent("work.txt")));
     }
 
     @Test
@@ -332,11 +342,11 @@ public class TestCommands {
         String[] args = new String[]{"checkout", "master"};
         checkout(args);
 
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+        CommitTree commitTree = CommitTree.read();
         assertTrue(commitTree.currentBranchName.equals("master"));
-        assertTrue(commitTree.branches.get("master").equals(commitTree.head));
-        Commit head = commitTree.head;
-        assertEquals(head.fileToCommit.size(), 2);
+        assertTrue(commitTree.getCommitOfBranch("master").equals(commitTree.getHead()));
+        Commit head = commitTree.getHead();
+        assertEquals(head.fileToContent.size(), 2);
     }
 
     @Test
@@ -349,7 +359,7 @@ public class TestCommands {
         String[] args = new String[]{"rm-branch", "1B"};
         rmBranch(args);
 
-        CommitTree commitTree = Utils.readObject(COMMIT_TREE, CommitTree.class);
+        CommitTree commitTree = CommitTree.read();
         assertEquals(commitTree.branches.size(), 1);
     }
 
@@ -410,7 +420,7 @@ public class TestCommands {
         status(args);
     }
 
-    @Test
+    @Test(expected = GitletException.class)
     /**
      * [Test 23] work flow before this test:
      * 1. pass Test03
@@ -447,7 +457,7 @@ public class TestCommands {
         String[] args = new String[]{"add", "hello.txt"};
         add(args);
         commit(new String[]{"commit", "master branch"});
-        Commit master = readObject(COMMIT_TREE, CommitTree.class).head;
+        Commit master = CommitTree.read().getHead();
 
         checkout(new String[]{"checkout", "1B"});
         if (!TEST_FILE_WORK.exists()) TEST_FILE_HELLO.createNewFile();
@@ -457,8 +467,8 @@ public class TestCommands {
         commit(new String[]{"commit", "1B branch"});
 
         merge(new String[]{"merge", "master"});
-        Commit head = readObject(COMMIT_TREE, CommitTree.class).head;
-        assertTrue(master.equals(head.secondParent));
+        Commit head = CommitTree.read().getHead();
+        assertTrue(master.equals(head.getSecondParent()));
         log(new String[]{"log"});
     }
 
@@ -509,6 +519,910 @@ public class TestCommands {
         assertFalse(TEST_FILE_F.exists());
     }
 
+    @Test
+    /**
+     * [Test 26] commits reference their parents by id and load them on demand
+     */
+    public void testParentsLoadedById() throws IOException {
+        moreTestCommit1();
+        ObjectId headID = CommitTree.read().headID;
+        Commit head = Commit.load(headID);
+        Commit parent = head.getParent();
+        assertEquals(head.parentID, parent.getID());
+        assertEquals("2nd commit", parent.message);
+        assertEquals("initial commit", parent.getParent().message);
+        assertNull(parent.getParent().getParent());
+        assertNull(head.getSecondParent());
+    }
+
+    @Test
+    /**
+     * [Test 27] the same content is stored once however many files or commits it appears in
+     */
+    public void testBlobsDeduplicated() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "same content");
+        writeContents(TEST_FILE_WORK, "same content");
+        add(new String[]{"add", "hello.txt"});
+        add(new String[]{"add", "work.txt"});
+        commit(new String[]{"commit", "two copies"});
+
+        Commit head = CommitTree.read().getHead();
+        ObjectId SHA = head.getFileContent("hello.txt");
+        assertEquals(SHA, head.getFileContent("work.txt"));
+        assertEquals(1, plainFilenamesIn(BlobStore.blobFile(SHA).getParentFile()).size());
+
+        writeContents(TEST_FILE_HELLO, "other content");
+        checkout(new String[]{"checkout", "--", "hello.txt"});
+        assertEquals("same content", readContentsAsString(TEST_FILE_HELLO));
+    }
+
+    @Test
+    /**
+     * [Test 28] after gc, objects are read from the pack and no loose object is left
+     */
+    public void testGcPacksObjects() throws IOException {
+        moreTestCommit1();
+        Commit head = CommitTree.read().getHead();
+        gc(new String[]{"gc"});
+        assertTrue(directoriesNamesIn(OBJECTS_DIR).isEmpty());
+        assertTrue(directoriesNamesIn(BLOBS_DIR).isEmpty());
+        assertEquals(2, plainFilenamesIn(PACK_DIR).size());
+
+        Commit packedHead = Commit.load(head.getID());
+        assertEquals("3rd commit", packedHead.message);
+        assertEquals("2nd commit", packedHead.getParent().message);
+        checkout(new String[]{"checkout", head.parentID.toString().substring(0, 8), "--", "hello.txt"});
+        assertEquals("hello world\nI'm Klay", readContentsAsString(TEST_FILE_HELLO));
+    }
+
+    @Test
+    /**
+     * [Test 29] gc stores versions of a file as deltas, and rebuilds each of them exactly
+     */
+    public void testGcStoresDeltas() throws IOException {
+        testInit();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 2000; ++i) content.append("line ").append(i).append(" of hello.txt\n");
+        List<String> versions = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            content.replace(i * 100, i * 100 + 4, "LINE");
+            versions.add(content.toString());
+            writeContents(TEST_FILE_HELLO, content.toString());
+            add(new String[]{"add", "hello.txt"});
+            commit(new String[]{"commit", "version " + i});
+        }
+        gc(new String[]{"gc"});
+
+        long packSize = 0;
+        for (String fileName: plainFilenamesIn(PACK_DIR)) packSize += join(PACK_DIR, fileName).length();
+        assertTrue(packSize < 3 * content.length());
+        Commit commit = CommitTree.read().getHead();
+        for (int i = versions.size() - 1; i >= 0; --i, commit = commit.getParent())
+            assertEquals(versions.get(i), new String(BlobStore.read(commit.getFileContent("hello.txt"))));
+    }
+
+    @Test
+    /**
+     * [Test 30] the commit-graph records generations, finds the split point of 2 branches,
+     * and is rebuilt from the commits when it's missing
+     */
+    public void testCommitGraph() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "hello");
+        add(new String[]{"add", "hello.txt"});
+        commit(new String[]{"commit", "split"});
+        ObjectId splitID = CommitTree.read().headID;
+        branch(new String[]{"branch", "other"});
+        writeContents(TEST_FILE_HELLO, "hello from master");
+        add(new String[]{"add", "hello.txt"});
+        commit(new String[]{"commit", "on master"});
+        ObjectId masterID = CommitTree.read().headID;
+        checkout(new String[]{"checkout", "other"});
+        writeContents(TEST_FILE_WORK, "work");
+        add(new String[]{"add", "work.txt"});
+        commit(new String[]{"commit", "on other"});
+        ObjectId otherID = CommitTree.read().headID;
+
+        for (int round = 0; round < 2; ++round) {
+            CommitGraph graph = CommitGraph.covering(splitID, masterID, otherID);
+            int split = graph.indexOf(splitID), master = graph.indexOf(masterID), other = graph.indexOf(otherID);
+            assertEquals(4, graph.size());
+            assertEquals(2, graph.generationAt(split));
+            assertEquals(3, graph.generationAt(master));
+            assertEquals(3, graph.generationAt(other));
+            assertTrue(graph.isAncestor(split, master));
+            assertFalse(graph.isAncestor(master, other));
+            assertEquals(split, graph.mergeBase(master, other));
+            COMMIT_GRAPH.delete();
+        }
+    }
+
+    @Test
+    /**
+     * [Test 31] the index remembers SHAs of working files, and only hashes a file again when its
+     * stat data changed or it was modified too close to when the index was written to tell
+     */
+    public void testIndexStatCache() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "hello");
+        TEST_FILE_HELLO.setLastModified(System.currentTimeMillis() - 10000);
+        add(new String[]{"add", "hello.txt"});
+
+        Stage stage = Stage.read();
+        assertEquals(ObjectId.hash("hello"), stage.hashOf("hello.txt"));
+        assertEquals(0, stage.filesHashed);
+
+        // same size, and a modification time not older than the index: racy, so hashed again
+        writeContents(TEST_FILE_HELLO, "HELLO");
+        TEST_FILE_HELLO.setLastModified(INDEX_FILE.lastModified());
+        stage = Stage.read();
+        assertEquals(ObjectId.hash("HELLO"), stage.hashOf("hello.txt"));
+        assertEquals(1, stage.filesHashed);
+
+        writeContents(TEST_FILE_HELLO, "hello, again");
+        stage = Stage.read();
+        assertEquals(ObjectId.hash("hello, again"), stage.hashOf("hello.txt"));
+        assertEquals(1, stage.filesHashed);
+        assertTrue(stage.hasFile("hello.txt"));
+    }
+
+    @Test
+    /**
+     * [Test 32] files are hashed over their raw bytes, whether read through a buffer or mapped,
+     * so binary content is added and checked out unchanged
+     */
+    public void testHashBinaryFiles() throws IOException {
+        testInit();
+        for (int size: new int[]{0, 1000, 3 << 20}) {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            writeContents(TEST_FILE_HELLO, content);
+            assertEquals(sha1(content), sha1(TEST_FILE_HELLO));
+
+            add(new String[]{"add", "hello.txt"});
+            commit(new String[]{"commit", "binary " + size});
+            writeContents(TEST_FILE_HELLO, "changed");
+            checkout(new String[]{"checkout", "--", "hello.txt"});
+            assertArrayEquals(content, readContents(TEST_FILE_HELLO));
+        }
+    }
+
+    @Test
+    /**
+     * [Test 33] a large file is stored as chunks, an edit to it only stores the chunks around the
+     * edit, and both versions are checked out exactly, before and after gc
+     */
+    public void testLargeFilesChunked() throws IOException {
+        testInit();
+        byte[] content = new byte[4 << 20];
+        new Random(33).nextBytes(content);
+        writeContents(TEST_FILE_HELLO, content);
+        add(new String[]{"add", "hello.txt"});
+        commit(new String[]{"commit", "large file"});
+        ObjectId firstID = CommitTree.read().headID;
+        int chunks = ObjectStore.ids(ObjectStore.BLOB).size();
+        assertTrue(chunks > 10);
+
+        byte[] edited = content.clone();
+        for (int i = 0; i < 100; ++i) edited[2000000 + i] = 42;
+        writeContents(TEST_FILE_HELLO, edited);
+        add(new String[]{"add", "hello.txt"});
+        commit(new String[]{"commit", "edited large file"});
+        assertTrue(ObjectStore.ids(ObjectStore.BLOB).size() - chunks <= 3);
+
+        for (int round = 0; round < 2; ++round) {
+            checkout(new String[]{"checkout", firstID.toString(), "--", "hello.txt"});
+            assertArrayEquals(content, readContents(TEST_FILE_HELLO));
+            checkout(new String[]{"checkout", "--", "hello.txt"});
+            assertArrayEquals(edited, readContents(TEST_FILE_HELLO));
+            gc(new String[]{"gc"});
+        }
+    }
+
+    @Test
+    /**
+     * [Test 34] object ids round-trip through hex, order like their hex forms, and hash like sha1
+     */
+    public void testObjectId() {
+        List<String> hexes = new ArrayList<>();
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < 100; ++i) {
+            String hex = sha1("content " + i);
+            assertEquals(hex, ObjectId.hash("content " + i).toString());
+            assertEquals(hex, ObjectId.fromHex(hex).toString());
+            assertEquals(ObjectId.fromHex(hex), ObjectId.fromBytes(hexToBytes(hex)));
+            hexes.add(hex);
+            ids.add(ObjectId.fromHex(hex));
+        }
+        Collections.sort(hexes);
+        Collections.sort(ids);
+        for (int i = 0; i < hexes.size(); ++i) assertEquals(hexes.get(i), ids.get(i).toString());
+        assertFalse(ObjectId.isId("not an id"));
+    }
+
+    @Test
+    /**
+     * [Test 35] abbreviated commit ids resolve through the sorted commit index, which finds new
+     * commits in its tail until they're merged into it, finds every commit sharing a prefix, and
+     * is rebuilt if it's deleted; the commit-graph finds the record of each commit through it
+     */
+    public void testCommitIndex() throws IOException {
+        testInit();
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < 30; ++i) {
+            writeContents(TEST_FILE_HELLO, "version " + i);
+            add(new String[]{"add", "hello.txt"});
+            commit(new String[]{"commit", "version " + i});
+            ids.add(CommitTree.read().headID);
+            assertEquals(i + 2, CommitIndex.read().size());
+            // merge the tail into the index halfway, so both are searched below
+            if (i == 15) assertEquals(i + 2, CommitIndex.read(0).size());
+        }
+
+        for (int round = 0; round < 2; ++round) {
+            CommitIndex index = CommitIndex.read();
+            CommitGraph graph = CommitGraph.covering();
+            for (ObjectId id: ids) {
+                assertEquals(id, graph.idAt(graph.indexOf(id)));
+                assertEquals(List.of(id), index.idsWithPrefix(id.toString()));
+                for (int length = 1; length <= 3; ++length) {
+                    String prefix = id.toString().substring(0, length);
+                    List<ObjectId> expected = new ArrayList<>();
+                    for (ObjectId other: ObjectStore.ids(ObjectStore.COMMIT))
+                        if (other.startsWith(prefix)) expected.add(other);
+                    Collections.sort(expected);
+                    assertEquals(expected, index.idsWithPrefix(prefix));
+                }
+            }
+            assertTrue(index.idsWithPrefix("not hex").isEmpty());
+            assertEquals(CommitGraph.NONE, graph.indexOf(ObjectId.hash("not a commit")));
+            COMMIT_INDEX.delete();
+        }
+
+        reset(new String[]{"reset", ids.get(10).toString().substring(0, 8)});
+        assertEquals("version 10", readContentsAsString(TEST_FILE_HELLO));
+    }
+
+    @Test
+    /**
+     * [Test 36] the message index answers exact, word and substring queries, keeps up with new
+     * commits, and is rebuilt the same if it's deleted
+     */
+    public void testMessageIndex() throws IOException {
+        testInit();
+        Map<String, ObjectId> ids = new HashMap<>();
+        String[] messages = {"Add hello", "fix: typo in hello", "Add work", "Add hello"};
+        for (int i = 0; i < messages.length; ++i) {
+            writeContents(TEST_FILE_HELLO, "version " + i);
+            add(new String[]{"add", "hello.txt"});
+            commit(new String[]{"commit", messages[i]});
+            ids.merge(messages[i], CommitTree.read().headID, (a, b) -> a);
+        }
+        ObjectId lastID = CommitTree.read().headID;
+
+        for (int round = 0; round < 2; ++round) {
+            assertEquals(new TreeSet<>(List.of(ids.get("Add hello"), lastID)), MessageIndex.withMessage("Add hello"));
+            assertEquals(Set.of(ids.get("Add work")), MessageIndex.withMessage("Add work"));
+            assertTrue(MessageIndex.withMessage("add work").isEmpty());
+            assertEquals(new TreeSet<>(List.of(ids.get("Add hello"), ids.get("fix: typo in hello"), lastID)),
+                    MessageIndex.withWords("HELLO"));
+            assertEquals(Set.of(ids.get("fix: typo in hello")), MessageIndex.withWords("typo hello"));
+            assertEquals(Set.of(ids.get("Add work")), MessageIndex.containing("d wo"));
+            assertEquals(messages.length + 1, MessageIndex.containing("").size());
+            deleteDirectory(MESSAGE_INDEX_DIR);
+        }
+    }
+
+    @Test
+    /**
+     * [Test 37] the commit stream hands out every commit once, in id order, whether it loads
+     * shards in parallel or not, and whether commits are loose or packed
+     */
+    public void testCommitStream() throws IOException {
+        testInit();
+        for (int i = 0; i < 50; ++i) {
+            writeContents(TEST_FILE_HELLO, "version " + i);
+            add(new String[]{"add", "hello.txt"});
+            commit(new String[]{"commit", "version " + i});
+        }
+
+        for (int round = 0; round < 2; ++round) {
+            for (boolean parallel: new boolean[]{false, true}) {
+                List<ObjectId> streamed = new ArrayList<>();
+                CommitStream commits = new CommitStream(parallel);
+                while (commits.hasNext()) streamed.add(commits.next().getID());
+                assertEquals(ObjectStore.ids(ObjectStore.COMMIT), streamed);
+            }
+            gc(new String[]{"gc"});
+        }
+    }
+
+    @Test
+    /**
+     * [Test 38] commits are read once and then served from the session's cache, and what a
+     * command changes is on disk once the command ends
+     */
+    public void testSession() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "hello");
+        add(new String[]{"add", "hello.txt"});
+        assertTrue(Stage.read().hasFile("hello.txt"));
+        commit(new String[]{"commit", "hello"});
+        ObjectId headID = CommitTree.read().headID;
+        assertTrue(Stage.read().fileNameToContent.isEmpty());
+
+        Session session = Session.current();
+        Commit head = session.commit(headID);
+        long hits = session.hits(), misses = session.misses();
+        assertSame(head, session.commit(headID));
+        assertSame(head.getParent(), session.commit(head.parentID));
+        assertEquals(hits + 3, session.hits());
+        assertEquals(misses, session.misses());
+
+        branch(new String[]{"branch", "other"});
+        assertTrue(CommitTree.read().hasBranch("other"));
+        assertEquals(misses, session.misses());
+    }
+
+    @Test
+    /**
+     * [Test 39] a batch runs its commands in one process, writing the staging area and commit tree
+     * only at checkpoints and at its end, and goes on past a command that fails
+     */
+    public void testBatch() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "hello");
+        writeContents(TEST_FILE_WORK, "work");
+        Session session = Session.current();
+        session.deferWrites(true);
+        try {
+            add(new String[]{"add", "hello.txt"});
+            assertFalse(Stage.read().hasFile("hello.txt"));
+            commit(new String[]{"commit", "hello"});
+            assertTrue(session.stage().fileNameToContent.isEmpty());
+            assertFalse(CommitTree.read().getHead().containsFile("hello.txt"));
+        } finally {
+            session.deferWrites(false);
+            session.discard();
+        }
+
+        assertArrayEquals(new String[]{"commit", "a \"quoted\" message", "x"},
+                Batch.parse("  commit \"a \\\"quoted\\\" message\"  x"));
+        String script = "add hello.txt\ncommit \"Add hello\"\ncheckpoint\n# comment\n\n"
+                + "add work.txt\ncommit \"Add hello\"\ncommit \"nothing staged\"\nbranch other\n";
+        Batch.run(new java.io.BufferedReader(new java.io.StringReader(script)));
+        CommitTree commitTree = CommitTree.read();
+        assertTrue(commitTree.hasBranch("other"));
+        assertTrue(commitTree.getHead().containsFile("work.txt"));
+        assertTrue(commitTree.getHead().getParent().containsFile("hello.txt"));
+        assertTrue(Stage.read().fileNameToContent.isEmpty());
+        assertEquals(2, MessageIndex.withMessage("Add hello").size());
+    }
+
+    @Test
+    /**
+     * [Test 40] commits and the commit tree are stored in their binary encodings and read back
+     * as they were, and ones the original gitlet wrote with Java serialization are refused in a
+     * repository of the current format
+     */
+    public void testBinaryEncoding() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "hello");
+        writeContents(TEST_FILE_WORK, "work");
+        add(new String[]{"add", "hello.txt"});
+        add(new String[]{"add", "work.txt"});
+        commit(new String[]{"commit", "two files, \u00e9t\u00e9"});
+        branch(new String[]{"branch", "other"});
+
+        CommitTree commitTree = CommitTree.read();
+        Commit head = commitTree.getHead();
+        Commit decoded = Commit.decode(head.encode());
+        assertFalse(BinaryFormat.isSerialized(ObjectStore.read(ObjectStore.COMMIT, head.getID())));
+        assertEquals(head.parentID, decoded.parentID);
+        assertNull(decoded.secondParentID);
+        assertEquals(head.message, decoded.message);
+        assertEquals(head.time, decoded.time);
+        assertEquals(head.fileToContent, decoded.fileToContent);
+        assertEquals(Set.of("master", "other"), commitTree.branches.keySet());
+
+        LegacyRepository.OldCommit oldCommit = oldCommit(null, "initial commit", new Date(0));
+        ObjectId legacyID = ObjectId.hash("legacy commit");
+        ObjectStore.writeLoose(ObjectStore.COMMIT, legacyID, serializeAsOriginal(oldCommit));
+        try {
+            Commit.load(legacyID);
+            fail();
+        } catch (GitletException excp) {
+            assertEquals(UNSUPPORTED_FORMAT, excp.getMessage());
+        }
+        LegacyRepository.OldCommitTree oldTree = new LegacyRepository.OldCommitTree();
+        oldTree.head = oldCommit;
+        oldTree.currentBranchName = "master";
+        oldTree.branches = new HashMap<>(Map.of("master", oldCommit));
+        writeContents(COMMIT_TREE, (Object) serializeAsOriginal(oldTree));
+        try {
+            CommitTree.read();
+            fail();
+        } catch (GitletException excp) {
+            assertEquals(UNSUPPORTED_FORMAT, excp.getMessage());
+        }
+    }
+
+    @Test
+    /**
+     * [Test 41] a commit's map of files has the same nodes however it was made, and a commit
+     * changing one file of many stores only the few nodes on that file's path
+     */
+    public void testFileMap() throws IOException {
+        testInit();
+        Map<String, ObjectId> expected = new HashMap<>();
+        FileMap forwards = FileMap.EMPTY, backwards = FileMap.EMPTY;
+        for (int i = 0; i < 3000; ++i) {
+            expected.put("file" + i, ObjectId.hash("content " + i));
+            forwards = forwards.with("file" + i, ObjectId.hash("content " + i));
+        }
+        for (int i = 3999; i >= 0; --i) backwards = backwards.with("file" + i, ObjectId.hash("content " + i));
+        for (int i = 3000; i < 4000; ++i) backwards = backwards.without("file" + i);
+        assertEquals(expected, forwards);
+        assertEquals(forwards.id(), backwards.id());
+        assertEquals(expected, new HashMap<>(backwards));
+        assertSame(forwards, forwards.with("file7", ObjectId.hash("content 7")));
+        assertNull(forwards.get("file3000"));
+
+        FileMap changed = forwards.with("file7", ObjectId.hash("new"));
+        assertEquals(ObjectId.hash("new"), forwards.withAll(changed).get("file7"));
+        assertEquals(ObjectId.hash("content 7"), changed.withAll(forwards).get("file7"));
+        assertEquals(forwards.size() + 1, forwards.withAll(FileMap.EMPTY.with("extra", ObjectId.hash(""))).size());
+
+        forwards.store();
+        int stored = ObjectStore.ids(ObjectStore.TREE).size();
+        changed.store();
+        assertTrue(ObjectStore.ids(ObjectStore.TREE).size() - stored <= 4);
+        assertEquals(changed, FileMap.load(changed.id()));
+        assertEquals(new HashMap<>(changed), new HashMap<>(FileMap.load(changed.id())));
+    }
+
+    @Test
+    /**
+     * [Test 42] files in subdirectories are tracked by their paths, each directory has an id that
+     * only changes with the files below it, and checkout deletes the directories it empties
+     */
+    public void testDirectories() throws IOException {
+        testInit();
+        File nested = join(CWD, "nested");
+        if (nested.exists()) deleteDirectory(nested);
+        join(nested, "a").mkdirs();
+        join(nested, "b").mkdirs();
+        writeContents(join(nested, "a", "one.txt"), "one");
+        writeContents(join(nested, "b", "two.txt"), "two");
+        add(new String[]{"add", "nested/a/one.txt"});
+        add(new String[]{"add", "./nested/b/../b/two.txt"});
+        commit(new String[]{"commit", "two directories"});
+        Commit first = CommitTree.read().getHead();
+        assertEquals(Set.of("nested/a/one.txt", "nested/b/two.txt"), first.fileToContent.keySet());
+
+        writeContents(join(nested, "b", "two.txt"), "two, changed");
+        add(new String[]{"add", "nested/b/two.txt"});
+        rm(new String[]{"rm", "nested/a/one.txt"});
+        assertFalse(join(nested, "a").exists());
+        commit(new String[]{"commit", "change b, remove a"});
+        Commit second = CommitTree.read().getHead();
+        assertEquals(FileMap.EMPTY, second.fileToContent.directory("nested/a"));
+        assertNotEquals(first.fileToContent.directory("nested/b").id(), second.fileToContent.directory("nested/b").id());
+        FileMap withThree = second.fileToContent.with("nested/c/three.txt", ObjectId.hash("three"));
+        assertEquals(second.fileToContent.directory("nested/b").id(), withThree.directory("nested/b").id());
+
+        List<String> differences = new ArrayList<>();
+        FileMap.diff(first.fileToContent, withThree, (path, before, after) -> differences.add(path));
+        Collections.sort(differences);
+        assertEquals(List.of("nested/a/one.txt", "nested/b/two.txt", "nested/c/three.txt"), differences);
+        assertEquals(new HashMap<>(withThree), new HashMap<>(FileMap.EMPTY.withAll(withThree)));
+
+        reset(new String[]{"reset", first.getSHAHash()});
+        assertEquals("one", readContentsAsString(join(nested, "a", "one.txt")));
+        assertEquals("two", readContentsAsString(join(nested, "b", "two.txt")));
+        reset(new String[]{"reset", second.getSHAHash()});
+        assertFalse(join(nested, "a").exists());
+        status(new String[]{"status"});
+        deleteDirectory(nested);
+    }
+
+    @Test
+    /**
+     * [Test 43] checkout only writes the files that differ between the two commits, and the ones
+     * on the stage, leaving unstaged edits of files the commits share alone
+     */
+    public void testIncrementalCheckout() throws IOException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "hello");
+        writeContents(TEST_FILE_WORK, "work");
+        add(new String[]{"add", "hello.txt"});
+        add(new String[]{"add", "work.txt"});
+        commit(new String[]{"commit", "base"});
+        branch(new String[]{"branch", "other"});
+        writeContents(TEST_FILE_HELLO, "hello again");
+        add(new String[]{"add", "hello.txt"});
+        commit(new String[]{"commit", "change hello"});
+
+        writeContents(TEST_FILE_WORK, "unstaged edit");
+        checkout(new String[]{"checkout", "other"});
+        assertEquals("hello", readContentsAsString(TEST_FILE_HELLO));
+        assertEquals("unstaged edit", readContentsAsString(TEST_FILE_WORK));
+
+        add(new String[]{"add", "work.txt"});
+        checkout(new String[]{"checkout", "master"});
+        assertEquals("hello again", readContentsAsString(TEST_FILE_HELLO));
+        assertEquals("work", readContentsAsString(TEST_FILE_WORK));
+        assertTrue(Stage.read().fileNameToContent.isEmpty());
+    }
+
+    @Test
+    /**
+     * [Test 44] files are written several at a time, one that can't be written is reported without
+     * stopping the others, whether it's written alone or with others, and blobs stored as is can be
+     * hard-linked into the working tree
+     */
+    public void testWriteAll() throws IOException {
+        System.setProperty("gitlet.format", "0");
+        try {
+            testInit();
+        } finally {
+            System.clearProperty("gitlet.format");
+        }
+        File nested = join(CWD, "nested");
+        if (nested.exists()) deleteDirectory(nested);
+        Map<String, ObjectId> files = new HashMap<>();
+        for (int i = 0; i < 40; ++i) {
+            writeContents(TEST_FILE_WORK, "file " + i);
+            ObjectId SHA = ObjectId.hash("file " + i);
+            BlobStore.save(SHA, TEST_FILE_WORK);
+            files.put("nested/d" + i % 4 + "/f" + i + ".txt", SHA);
+        }
+        writeContents(TEST_FILE_HELLO, "hello");
+        files.put("hello.txt/inside.txt", ObjectId.hash("file 0"));
+
+        Stage stage = new Stage();
+        Map<String, String> failures = new WorkingTree(stage).writeAll(files);
+        assertEquals(Set.of("hello.txt/inside.txt"), failures.keySet());
+        failures = new WorkingTree(stage).writeAll(Map.of("hello.txt/inside.txt", ObjectId.hash("file 0")));
+        assertEquals(Set.of("hello.txt/inside.txt"), failures.keySet());
+        assertEquals("file 7", readContentsAsString(join(nested, "d3", "f7.txt")));
+        assertEquals("hello", readContentsAsString(TEST_FILE_HELLO));
+        assertEquals(Arrays.asList("f0.txt", "f12.txt", "f16.txt", "f20.txt", "f24.txt", "f28.txt", "f32.txt",
+                "f36.txt", "f4.txt", "f8.txt"), plainFilenamesIn(join(nested, "d0")));
+
+        File linked = join(nested, "linked.txt");
+        assertTrue(BlobStore.linkTo(ObjectId.hash("file 3"), linked));
+        assertEquals("file 3", readContentsAsString(linked));
+        assertFalse(Files.getPosixFilePermissions(linked.toPath()).contains(PosixFilePermission.OWNER_WRITE));
+        linked.delete();
+        deleteDirectory(nested);
+    }
+
+    @Test
+    /**
+     * [Test 45] merge takes, deletes and conflicts each file by its case, keeps the files only head
+     * changed, and records all of it on the stage for the merge commit
+     */
+    public void testMergeCases() throws IOException {
+        testInit();
+        File nested = join(CWD, "nested");
+        if (nested.exists()) deleteDirectory(nested);
+        nested.mkdirs();
+        for (String name: new String[]{"a", "b", "c", "d", "e", "f", "g"}) {
+            writeContents(join(nested, name + ".txt"), name + "\n");
+            add(new String[]{"add", "nested/" + name + ".txt"});
+        }
+        commit(new String[]{"commit", "base"});
+        branch(new String[]{"branch", "other"});
+
+        for (String name: new String[]{"b", "d", "g", "i"}) {
+            writeContents(join(nested, name + ".txt"), name + " in head\n");
+            add(new String[]{"add", "nested/" + name + ".txt"});
+        }
+        rm(new String[]{"rm", "nested/e.txt"});
+        commit(new String[]{"commit", "head"});
+
+        checkout(new String[]{"checkout", "other"});
+        for (String name: new String[]{"c", "d", "h"}) {
+            writeContents(join(nested, name + ".txt"), name + " in branch\n");
+            add(new String[]{"add", "nested/" + name + ".txt"});
+        }
+        rm(new String[]{"rm", "nested/f.txt"});
+        rm(new String[]{"rm", "nested/g.txt"});
+        commit(new String[]{"commit", "branch"});
+
+        checkout(new String[]{"checkout", "master"});
+        merge(new String[]{"merge", "other"});
+        Commit merged = CommitTree.read().getHead();
+        assertEquals(Set.of("nested/a.txt", "nested/b.txt", "nested/c.txt", "nested/d.txt", "nested/g.txt",
+                "nested/h.txt", "nested/i.txt"), merged.fileToContent.keySet());
+        assertEquals(ObjectId.hash("b in head\n"), merged.getFileContent("nested/b.txt"));
+        assertEquals(ObjectId.hash("c in branch\n"), merged.getFileContent("nested/c.txt"));
+        assertEquals("c in branch\n", readContentsAsString(join(nested, "c.txt")));
+        assertEquals("<<<<<<< HEAD\nd in head\n=======\nd in branch\n>>>>>>>\r\n",
+                readContentsAsString(join(nested, "d.txt")));
+        assertEquals(ObjectId.hash(readContentsAsString(join(nested, "g.txt"))), merged.getFileContent("nested/g.txt"));
+        assertFalse(join(nested, "e.txt").exists());
+        assertFalse(join(nested, "f.txt").exists());
+        assertTrue(Stage.read().fileNameToContent.isEmpty());
+        deleteDirectory(nested);
+    }
+
+    @Test
+    /**
+     * [Test 46] diff finds the lines that changed, and merge takes the changes each branch made to
+     * different lines of a file, leaving markers only around lines both changed
+     */
+    public void testLineMerge() throws IOException {
+        List<Diff.Hunk> hunks = Diff.diff(List.of("a\n", "b\n", "c\n", "d\n"), List.of("a\n", "B\n", "c\n", "d\n", "e\n"));
+        assertEquals(2, hunks.size());
+        assertEquals("[1,2) -> [1,2)", hunks.get(0).toString());
+        assertEquals("[4,4) -> [4,5)", hunks.get(1).toString());
+
+        byte[] base = "a\nb\nc\nd\ne\n".getBytes(StandardCharsets.UTF_8);
+        Merge.Content clean = Merge.mergeLines(base, "A\nb\nc\nd\ne\n".getBytes(StandardCharsets.UTF_8),
+                "a\nb\nc\nd\nE\nf".getBytes(StandardCharsets.UTF_8));
+        assertFalse(clean.conflicted);
+        assertEquals("A\nb\nc\nd\nE\nf", new String(clean.bytes, StandardCharsets.UTF_8));
+        Merge.Content conflicted = Merge.mergeLines(base, "a\nb\nC\nd\ne\n".getBytes(StandardCharsets.UTF_8),
+                "a\nb\nc2\nd\ne".getBytes(StandardCharsets.UTF_8));
+        assertTrue(conflicted.conflicted);
+        assertEquals("a\nb\n<<<<<<< HEAD\nC\n=======\nc2\n>>>>>>>\nd\ne", new String(conflicted.bytes, StandardCharsets.UTF_8));
+
+        testInit();
+        writeContents(TEST_FILE_HELLO, "one\ntwo\nthree\nfour\n");
+        add(new String[]{"add", TEST_FILE_HELLO.getName()});
+        commit(new String[]{"commit", "base"});
+        branch(new String[]{"branch", "other"});
+        writeContents(TEST_FILE_HELLO, "one in head\ntwo\nthree\nfour\n");
+        add(new String[]{"add", TEST_FILE_HELLO.getName()});
+        commit(new String[]{"commit", "head"});
+        checkout(new String[]{"checkout", "other"});
+        writeContents(TEST_FILE_HELLO, "one\ntwo\nthree\nfour in branch\n");
+        add(new String[]{"add", TEST_FILE_HELLO.getName()});
+        commit(new String[]{"commit", "branch"});
+        checkout(new String[]{"checkout", "master"});
+        merge(new String[]{"merge", "other"});
+        String merged = "one in head\ntwo\nthree\nfour in branch\n";
+        assertEquals(merged, readContentsAsString(TEST_FILE_HELLO));
+        assertEquals(ObjectId.hash(merged), CommitTree.read().getHead().getFileContent(TEST_FILE_HELLO.getName()));
+        assertTrue(Stage.read().fileNameToContent.isEmpty());
+    }
+
+    /**
+     * Return what the diff command ARGS prints
+     */
+    private static String diffOutput(String... args) throws IOException {
+        return output(Commands::diff, args);
+    }
+
+    private interface Command {
+        void run(String[] args) throws IOException;
+    }
+
+    /**
+     * Return what COMMAND prints when run with ARGS
+     */
+    private static String output(Command command, String... args) throws IOException {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed));
+        try {
+            command.run(args);
+        } finally {
+            System.setOut(out);
+        }
+        return printed.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    /**
+     * [Test 47] diff prints the lines that changed between the stage and the working files, a
+     * commit and the working files, or two commits, limited to a path if one is given, and "." is
+     * the whole working tree
+     */
+    public void testDiff() throws IOException {
+        testInit();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 1; i <= 10; ++i) lines.append(i).append('\n');
+        writeContents(TEST_FILE_HELLO, lines.toString());
+        writeContents(TEST_FILE_WORK, "work");
+        add(new String[]{"add", TEST_FILE_HELLO.getName()});
+        add(new String[]{"add", TEST_FILE_WORK.getName()});
+        commit(new String[]{"commit", "first"});
+        ObjectId first = CommitTree.read().headID;
+        assertEquals("", diffOutput("diff"));
+
+        writeContents(TEST_FILE_HELLO, lines.toString().replace("\n8\n", "\neight\n"));
+        String helloDiff = "diff --git a/hello.txt b/hello.txt\n--- a/hello.txt\n+++ b/hello.txt\n"
+                + "@@ -5,6 +5,6 @@\n 5\n 6\n 7\n-8\n+eight\n 9\n 10\n";
+        assertEquals(helloDiff, diffOutput("diff"));
+        add(new String[]{"add", TEST_FILE_HELLO.getName()});
+        assertEquals("", diffOutput("diff"));
+        assertEquals(helloDiff, diffOutput("diff", first.toString()));
+
+        rm(new String[]{"rm", TEST_FILE_WORK.getName()});
+        commit(new String[]{"commit", "second"});
+        String workDiff = "diff --git a/work.txt b/work.txt\ndeleted file\n--- a/work.txt\n+++ /dev/null\n"
+                + "@@ -1 +0,0 @@\n-work\n\\ No newline at end of file\n";
+        assertEquals(helloDiff + workDiff, diffOutput("diff", first.toString().substring(0, 8), "master"));
+        assertEquals(workDiff, diffOutput("diff", first.toString(), "master", "--", TEST_FILE_WORK.getName()));
+        assertEquals("", diffOutput("diff", "master", "--", TEST_FILE_HELLO.getName()));
+        assertEquals(helloDiff + workDiff, diffOutput("diff", first.toString(), "--", "."));
+        assertEquals(helloDiff + workDiff, diffOutput("diff", first.toString(), "master", "--", "."));
+    }
+
+    @Test
+    /**
+     * [Test 48] a repository without a format file that the original gitlet didn't make, or of a
+     * format newer than this gitlet knows, is refused with a message rather than misread
+     */
+    public void testUnsupportedFormat() throws IOException {
+        testInit();
+        for (String format: new String[]{null, String.valueOf(Repository.FORMAT_VERSION + 1), "x"}) {
+            if (format == null) FORMAT_FILE.delete();
+            else writeContents(FORMAT_FILE, format + "\n");
+            ObjectStore.reload();
+            try {
+                status(new String[]{"status"});
+                fail();
+            } catch (GitletException excp) {
+                assertEquals(UNSUPPORTED_FORMAT, excp.getMessage());
+            }
+        }
+        Session.current().discard();
+        writeContents(FORMAT_FILE, Repository.FORMAT_VERSION + "\n");
+        ObjectStore.reload();
+        status(new String[]{"status"});
+
+        // the staging area of an older gitlet, without an index
+        INDEX_FILE.delete();
+        writeContents(LEGACY_STAGING_AREA, (Object) serialize(new TreeMap<String, String>()));
+        try {
+            status(new String[]{"status"});
+            fail();
+        } catch (GitletException excp) {
+            assertEquals(UNSUPPORTED_FORMAT, excp.getMessage());
+        }
+        Session.current().discard();
+    }
+
+    @Test
+    /**
+     * [Test 49] a file cached in the same clock tick as the index is written isn't trusted by a
+     * later index either, so an edit of the same size within that tick still shows in status
+     */
+    public void testRacyEntryDropped() throws IOException, InterruptedException {
+        testInit();
+        writeContents(TEST_FILE_HELLO, "aaa");
+        add(new String[]{"add", "hello.txt"});
+        commit(new String[]{"commit", "aaa"});
+
+        // a modification time the index written by status can't be older than, as in the same tick
+        long tick = System.currentTimeMillis() + 1000;
+        TEST_FILE_HELLO.setLastModified(tick);
+        status(new String[]{"status"});
+        writeContents(TEST_FILE_HELLO, "ccc");
+        TEST_FILE_HELLO.setLastModified(tick);
+
+        while (System.currentTimeMillis() <= tick + 10) Thread.sleep(50);
+        writeContents(TEST_FILE_WORK, "work");
+        add(new String[]{"add", "work.txt"});
+        assertTrue(INDEX_FILE.lastModified() > tick);
+        assertTrue(output(Commands::status, "status").contains(
+                "=== Modifications Not Staged For Commit ===\nhello.txt (modified)\n"));
+    }
+
+    @Test
+    /**
+     * [Test 50] a repository made by the original gitlet, with Java-serialized commits, commit tree
+     * and staging area and backup copies of files, is upgraded by the first command run in it
+     */
+    public void testUpgradeOriginalRepository() throws IOException {
+        deleteNecessaryFiles();
+        Session.current().discard();
+        ObjectStore.reload();
+        GITLET_DIR.mkdir();
+        LegacyRepository.OldCommit initial = oldCommit(null, "initial commit", new Date(0));
+        LegacyRepository.OldCommit first = oldCommit(initial, "first", new Date(1000), "hello.txt", "hello",
+                "work.txt", "work");
+        LegacyRepository.OldCommit second = oldCommit(first, "second", new Date(2000), "hello.txt", "hello 2");
+        for (LegacyRepository.OldCommit commit: List.of(initial, first, second)) {
+            File file = join(OBJECTS_DIR, commit.id().substring(0, 2), commit.id().substring(2));
+            file.getParentFile().mkdirs();
+            writeContents(file, (Object) serializeAsOriginal(commit));
+        }
+
+        LegacyRepository.OldCommitTree oldTree = new LegacyRepository.OldCommitTree();
+        oldTree.head = second;
+        oldTree.currentBranchName = "master";
+        oldTree.branches = new HashMap<>(Map.of("master", second, "other", first));
+        writeContents(COMMIT_TREE, (Object) serializeAsOriginal(oldTree));
+        LegacyRepository.OldStage oldStage = new LegacyRepository.OldStage();
+        oldStage.fileNameToContent = new HashMap<>(Map.of("work.txt", sha1("work 2")));
+        oldStage.removalFileSet = new HashSet<>(Set.of("hello.txt"));
+        writeContents(LEGACY_STAGING_AREA, (Object) serializeAsOriginal(oldStage));
+        writeContents(TEST_FILE_WORK, "work 2");
+
+        status(new String[]{"status"});
+        assertEquals(FORMAT_VERSION + "\n", readContentsAsString(FORMAT_FILE));
+        assertFalse(LEGACY_STAGING_AREA.exists() || LEGACY_BACKUP_DIR.exists() || UPGRADE_MARKER.exists());
+        CommitTree commitTree = CommitTree.read();
+        Commit head = commitTree.getHead();
+        assertEquals("second", head.message);
+        assertEquals("hello 2", new String(BlobStore.read(head.getFileContent("hello.txt")), StandardCharsets.UTF_8));
+        assertEquals(head.getParent(), commitTree.getCommitOfBranch("other"));
+        assertEquals("work", new String(BlobStore.read(head.getFileContent("work.txt")), StandardCharsets.UTF_8));
+        assertEquals(ObjectId.fromHex(initial.id()), head.getParent().getParent().getID());
+        Stage stage = Stage.read();
+        assertEquals(Map.of("work.txt", ObjectId.hash("work 2")), stage.fileNameToContent);
+        assertEquals(Set.of("hello.txt"), stage.removalFileSet);
+        assertEquals(3, ObjectStore.ids(ObjectStore.COMMIT).size());
+        Session.current().discard();
+    }
+
+    /**
+     * Return a commit of the original gitlet with the files of PARENT, and FILES, names each followed
+     * by its contents, backed up as the original gitlet backed up the files a commit changed
+     */
+    private static LegacyRepository.OldCommit oldCommit(LegacyRepository.OldCommit parent, String message,
+                                                        Date time, String... files) {
+        LegacyRepository.OldCommit commit = new LegacyRepository.OldCommit();
+        commit.parent = parent;
+        commit.message = message;
+        commit.time = time;
+        commit.fileToContent = parent == null ? new HashMap<>() : new HashMap<>(parent.fileToContent);
+        commit.fileToCommit = parent == null ? new HashMap<>() : new HashMap<>(parent.fileToCommit);
+        commit.objectsToHash = new ArrayList<>();
+        for (int i = 0; i < files.length; i += 2) commit.fileToContent.put(files[i], sha1(files[i + 1]));
+        for (int i = 0; i < files.length; i += 2) {
+            commit.fileToCommit.put(files[i], commit.id());
+            File backup = join(LEGACY_BACKUP_DIR, commit.id(), files[i]);
+            backup.getParentFile().mkdirs();
+            writeContents(backup, files[i + 1]);
+        }
+        return commit;
+    }
+
+    /**
+     * Return OBJECT serialized as the original gitlet would have serialized it, with each Old class
+     * of LegacyRepository under the name of the original class it stands for
+     */
+    private static byte[] serializeAsOriginal(Serializable object) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes) {
+            @Override
+            protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException {
+                String name = originalName(desc.getName());
+                if (name.equals(desc.getName())) {
+                    super.writeClassDescriptor(desc);
+                    return;
+                }
+                writeUTF(name);
+                writeLong(desc.getSerialVersionUID());
+                writeByte(ObjectStreamConstants.SC_SERIALIZABLE);
+                writeShort(desc.getFields().length);
+                for (ObjectStreamField field: desc.getFields()) {
+                    writeByte(field.getTypeCode());
+                    writeUTF(field.getName());
+                    if (field.isPrimitive()) continue;
+                    String type = field.getTypeString();
+                    writeObject("L" + originalName(type.substring(1, type.length() - 1).replace('/', '.'))
+                            .replace('.', '/') + ";");
+                }
+            }
+        }) {
+            out.writeObject(object);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String originalName(String name) {
+        String prefix = LegacyRepository.class.getName() + "$Old";
+        return name.startsWith(prefix) ? "gitlet." + name.substring(prefix.length()) : name;
+    }
+
     @Test
     public void testCommitHashcode() {
         Set<Commit> set = new HashSet<>();
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -9,6 +10,8 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
@@ -17,8 +20,9 @@ import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.Formatter;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 
 /** Assorted utilities.
@@ -35,28 +39,44 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
+    /** A SHA-1 digest per thread, reset and reused by every hash taken
+     *  on that thread instead of looked up anew each time. */
+    private static final ThreadLocal<MessageDigest> SHA1_DIGEST =
+        ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException excp) {
+                throw new IllegalArgumentException("System does not support SHA-1");
+            }
+        });
+
+    /** Returns the SHA-1 digest of this thread, reset. */
+    private static MessageDigest sha1Digest() {
+        MessageDigest md = SHA1_DIGEST.get();
+        md.reset();
+        return md;
+    }
+
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        return bytesToHex(sha1Bytes(vals));
+    }
+
+    /** Returns the 20 bytes of the SHA-1 hash of the concatenation of
+     *  VALS, which may be any mixture of byte arrays and Strings. */
+    static byte[] sha1Bytes(Object... vals) {
+        MessageDigest md = sha1Digest();
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+            } else if (val instanceof String) {
+                md.update(((String) val).getBytes(StandardCharsets.UTF_8));
+            } else {
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
         }
+        return md.digest();
     }
 
     /** Returns the SHA-1 hash of the concatenation of the strings in
@@ -65,6 +85,107 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Files at least this long are hashed through memory-mapped windows
+     *  rather than read into a buffer. */
+    private static final long MAP_THRESHOLD = 1 << 20;
+    /** Longest part of a file mapped at once. */
+    private static final long MAP_WINDOW = 1 << 30;
+    /** Buffer files shorter than MAP_THRESHOLD are read through, one per
+     *  thread, so hashing allocates nothing per piece of a file. */
+    private static final ThreadLocal<ByteBuffer> HASH_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(1 << 16));
+
+    /** Returns the SHA-1 hash of the contents of FILE, the same as
+     *  sha1(readContents(FILE)), but reading FILE in pieces so that a
+     *  file of any size can be hashed. */
+    static String sha1(File file) {
+        return bytesToHex(sha1Bytes(file));
+    }
+
+    /** Returns the 20 bytes of the SHA-1 hash of the contents of FILE. */
+    static byte[] sha1Bytes(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            return sha1Bytes(channel);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the SHA-1 hash of the bytes of CHANNEL from its current
+     *  position to its end. */
+    static String sha1(FileChannel channel) throws IOException {
+        return bytesToHex(sha1Bytes(channel));
+    }
+
+    /** Returns the 20 bytes of the SHA-1 hash of the bytes of CHANNEL
+     *  from its current position to its end. */
+    static byte[] sha1Bytes(FileChannel channel) throws IOException {
+        MessageDigest md = sha1Digest();
+        long position = channel.position(), size = channel.size();
+        if (size - position >= MAP_THRESHOLD) {
+            for (; position < size; position += MAP_WINDOW) {
+                md.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                                      Math.min(MAP_WINDOW, size - position)));
+            }
+        } else {
+            ByteBuffer buffer = HASH_BUFFER.get();
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        return md.digest();
+    }
+
+    /** Hexadecimal digits, by value. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** Value of each lowercase hexadecimal digit, by character; -1 for
+     *  other characters. */
+    private static final byte[] HEX_VALUES = new byte[128];
+
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < HEX_DIGITS.length; i += 1) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+        }
+    }
+
+    /** Returns the value of the lowercase hexadecimal digit C, or -1 if C
+     *  is not one. */
+    static int hexValue(char c) {
+        return c < HEX_VALUES.length ? HEX_VALUES[c] : -1;
+    }
+
+    /** Returns the bytes written as the hexadecimal numeral HEX, two
+     *  digits per byte. Throws IllegalArgumentException if HEX is not
+     *  lowercase hexadecimal of even length. */
+    static byte[] hexToBytes(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd length hex " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            int high = hexValue(hex.charAt(2 * i)), low = hexValue(hex.charAt(2 * i + 1));
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("not hex: " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+
+    /** Returns BYTES written as a hexadecimal numeral. */
+    static String bytesToHex(byte[] bytes) {
+        char[] hex = new char[2 * bytes.length];
+        for (int i = 0; i < bytes.length; i += 1) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -260,6 +381,32 @@ class Utils {
 
 
 
+    /* COMPRESSION */
+
+    /** Returns BYTES compressed through a zlib Deflater stream. */
+    static byte[] compress(byte[] bytes) {
+        try {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(stream);
+            out.write(bytes);
+            out.close();
+            return stream.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the bytes that compress produced BYTES from, read back
+     *  through an Inflater stream. */
+    static byte[] decompress(byte[] bytes) {
+        try (InflaterInputStream in =
+                 new InflaterInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as
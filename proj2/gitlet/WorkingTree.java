@@ -0,0 +1,258 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** SHAs of the working files, as seen by one command.
+ *  Files are hashed through the stat cache of the stage, several at a time on a pool of
+ *  MAX_IN_FLIGHT threads, so at most that many files are being read at once. Whatever a command
+ *  learns about a file, by hashing it or by writing it, is kept for the rest of the command,
+ *  so each file is hashed at most once however many steps of the command look at it.
+ *
+ *  Files checked out are written on the same pool. Each is written to a temporary file next to it
+ *  and renamed into place, so a file that can't be written keeps its old content whole. With the
+ *  gitlet.links system property set to true, a file whose content is stored as is in a loose blob
+ *  is made a hard link to the blob instead of a copy; both are then read-only, so editing the file
+ *  in place can't change what's stored.
+ *
+ *  Files are named by their path in the repository: relative to CWD, with directories separated
+ *  by '/', which is also how commits and the stage name them.
+ */
+class WorkingTree {
+    /** Most files read at the same time */
+    static final int MAX_IN_FLIGHT = Math.min(16, 2 * Runtime.getRuntime().availableProcessors());
+
+    /** Whether files checked out are hard links to their blobs where possible */
+    static final boolean LINK_FILES = Boolean.getBoolean("gitlet.links");
+
+    /** Threads reading and writing files, started on the first scan or checkout of more than one file */
+    private static ExecutorService pool;
+
+    private final Stage stage;
+    /** SHAs of the files looked at or written so far by this command */
+    private final Map<String, ObjectId> hashes = new HashMap<>();
+
+    WorkingTree(Stage stage) {
+        this.stage = stage;
+    }
+
+    private static synchronized ExecutorService pool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(MAX_IN_FLIGHT, task -> {
+                Thread thread = new Thread(task, "gitlet-working-tree");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Return FILENAME, as given on the command line, as a path in the repository, or fail with
+     * "File does not exist." if it's outside the working tree
+     */
+    static String pathOf(String fileName) {
+        String path = pathOrRootOf(fileName);
+        if (path.isEmpty()) GitletException.handleException("File does not exist.");
+        return path;
+    }
+
+    /**
+     * Return FILENAME as a path in the repository as pathOf does, or "" if it's the working
+     * directory itself
+     */
+    static String pathOrRootOf(String fileName) {
+        Path root = Repository.CWD.toPath().toAbsolutePath().normalize();
+        Path path = root.resolve(fileName).normalize();
+        if (!path.startsWith(root) || path.startsWith(root.resolve(".gitlet")))
+            GitletException.handleException("File does not exist.");
+        return pathString(root.relativize(path));
+    }
+
+    private static String pathString(Path path) {
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Return the paths of all the working files, in every directory but .gitlet, in order
+     */
+    static List<String> listFiles() throws IOException {
+        Path root = Repository.CWD.toPath();
+        List<String> paths = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                return directory.equals(root.resolve(".gitlet")) ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) paths.add(pathString(root.relativize(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(paths);
+        return paths;
+    }
+
+    /**
+     * Create the directories the working file PATH goes in, and return the file
+     */
+    static File prepare(String path) {
+        File file = new File(path);
+        File directory = file.getParentFile();
+        if (directory != null) directory.mkdirs();
+        return file;
+    }
+
+    /**
+     * Delete the working file PATH if it exists, then the directories it was in that it leaves empty.
+     * Return false if the file is still there
+     */
+    static boolean delete(String path) {
+        File file = new File(path);
+        if (!file.isFile()) return true;
+        if (!file.delete()) return false;
+        for (File directory = file.getParentFile(); directory != null && directory.delete(); )
+            directory = directory.getParentFile();
+        return true;
+    }
+
+    /**
+     * Write the content stored under SHA to the working file PATH, through a temporary file
+     * renamed into place
+     */
+    static void write(String path, ObjectId SHA) throws IOException {
+        Path file = prepare(path).toPath();
+        Path temp = file.resolveSibling("." + file.getFileName() + ".gitlet-tmp");
+        try {
+            Files.deleteIfExists(temp);
+            if (!LINK_FILES || !BlobStore.linkTo(SHA, temp.toFile())) BlobStore.writeTo(SHA, temp.toFile());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Write each of FILES, a path and the SHA of the content to write to it, several at a time, and
+     * remember the ones written. Return, by path, the message of the failure of each file that
+     * couldn't be written, which keeps its old content; a failure that isn't an IOException or
+     * IllegalArgumentException isn't the file's own, and is thrown once the other writes are done
+     */
+    Map<String, String> writeAll(Map<String, ObjectId> files) {
+        Map<String, String> failures = new TreeMap<>();
+        if (files.size() <= 1) {
+            for (Map.Entry<String, ObjectId> file: files.entrySet()) {
+                try {
+                    write(file.getKey(), file.getValue());
+                    written(file.getKey(), file.getValue());
+                } catch (IOException | IllegalArgumentException excp) {
+                    failures.put(file.getKey(), String.valueOf(excp.getMessage()));
+                }
+            }
+            return failures;
+        }
+
+        Map<String, Future<?>> writes = new HashMap<>();
+        for (Map.Entry<String, ObjectId> file: files.entrySet())
+            writes.put(file.getKey(), pool().submit(() -> {
+                write(file.getKey(), file.getValue());
+                return null;
+            }));
+        Throwable abort = null;
+        for (Map.Entry<String, ObjectId> file: files.entrySet()) {
+            try {
+                writes.get(file.getKey()).get();
+                written(file.getKey(), file.getValue());
+            } catch (ExecutionException excp) {
+                Throwable cause = excp.getCause();
+                if (cause instanceof IOException || cause instanceof IllegalArgumentException)
+                    failures.put(file.getKey(), String.valueOf(cause.getMessage()));
+                else if (abort == null) abort = cause;
+            } catch (InterruptedException excp) {
+                for (Future<?> write: writes.values()) write.cancel(true);
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        if (abort instanceof RuntimeException) throw (RuntimeException) abort;
+        if (abort instanceof Error) throw (Error) abort;
+        return failures;
+    }
+
+    /**
+     * Learn the SHAs of the given working files, which must exist, hashing in parallel
+     * the ones not already known
+     */
+    void hashAll(Collection<String> fileNames) {
+        List<String> unknown = new ArrayList<>();
+        for (String fileName: fileNames)
+            if (!hashes.containsKey(fileName)) unknown.add(fileName);
+        if (unknown.size() <= 1) {
+            for (String fileName: unknown) hashOf(fileName);
+            return;
+        }
+
+        List<Future<Stage.FileStat>> stats = new ArrayList<>();
+        for (String fileName: unknown) stats.add(pool().submit(() -> stage.lookup(fileName)));
+        try {
+            // the lookups read the stage, so it's only changed once they're all done
+            for (Future<Stage.FileStat> stat: stats) stat.get();
+            for (int i = 0; i < unknown.size(); ++i) {
+                Stage.FileStat stat = stats.get(i).get();
+                stage.remember(unknown.get(i), stat);
+                hashes.put(unknown.get(i), stat.SHA);
+            }
+        } catch (InterruptedException | ExecutionException excp) {
+            for (Future<Stage.FileStat> stat: stats) stat.cancel(true);
+            Throwable cause = excp.getCause() != null ? excp.getCause() : excp;
+            throw new IllegalArgumentException(cause.getMessage());
+        }
+    }
+
+    /**
+     * Return the SHA of the content of the working file FILENAME, which must exist
+     */
+    ObjectId hashOf(String fileName) {
+        ObjectId SHA = hashes.get(fileName);
+        if (SHA == null) {
+            SHA = stage.hashOf(fileName);
+            hashes.put(fileName, SHA);
+        }
+        return SHA;
+    }
+
+    /**
+     * Record that this command just wrote content SHA to the working file FILENAME
+     */
+    void written(String fileName, ObjectId SHA) {
+        stage.recordHash(fileName, SHA);
+        hashes.put(fileName, SHA);
+    }
+
+    /**
+     * Record that this command just deleted the working file FILENAME
+     */
+    void deleted(String fileName) {
+        stage.forget(fileName);
+        hashes.remove(fileName);
+    }
+}